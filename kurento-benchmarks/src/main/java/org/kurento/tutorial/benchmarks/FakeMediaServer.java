@@ -0,0 +1,388 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Stand-in for a Kurento Media Server. It answers the JSON-RPC protocol spoken by
+ * kurento-client: objects are created and released, SDP offers get a canned answer, pipelines and
+ * their elements can be listed, and every other operation succeeds without doing anything. No
+ * media ever flows.
+ * <p>
+ * Each answer can be delayed to mimic a loaded server. When events are enabled, endpoints that
+ * negotiate report {@code MediaStateChanged} to CONNECTED, and endpoints that gather candidates
+ * report one {@code IceCandidateFound}, to whoever subscribed to them.
+ * <p>
+ * The protocol itself does not depend on a transport: {@link #createClient()} talks to it
+ * in-process, and {@link FakeMediaServerHandler} serves it over a WebSocket.
+ *
+ * @since 6.6.2
+ */
+public class FakeMediaServer extends DefaultJsonRpcHandler<JsonObject> {
+
+  private static final Logger log = LoggerFactory.getLogger(FakeMediaServer.class);
+
+  private static final String SDP_ANSWER = "v=0\r\n"
+      + "o=- 3683940283 3683940283 IN IP4 127.0.0.1\r\n" + "s=Kurento Media Server\r\n"
+      + "c=IN IP4 127.0.0.1\r\n" + "t=0 0\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 100\r\n" + "a=rtpmap:100 VP8/90000\r\n"
+      + "a=sendrecv\r\n" + "a=mid:video\r\n";
+
+  private final long latencyMillis;
+  private final boolean events;
+  private final String sessionId = UUID.randomUUID().toString();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Where the events a client subscribed to are delivered.
+   */
+  public interface EventSink {
+
+    /**
+     * @param params
+     *          params of the {@code onEvent} notification
+     */
+    void onEvent(JsonObject params) throws IOException;
+  }
+
+  // Event types each object has subscribers for, with the sink to notify
+  private final ConcurrentMap<String, ConcurrentMap<String, EventSink>> subscriptions =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Boolean> objects = new ConcurrentHashMap<>();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  /**
+   * @param latencyMillis
+   *          delay before answering each request, or 0 to answer at once
+   * @param events
+   *          whether endpoints report state changes and candidates
+   */
+  public FakeMediaServer(long latencyMillis, boolean events) {
+    this.latencyMillis = latencyMillis;
+    this.events = events;
+    this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fake-kms");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * A client connected to this server in-process, without any network in between.
+   */
+  public KurentoClient createClient() {
+    return KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(this));
+  }
+
+  /**
+   * Number of requests answered so far, operations of a transaction included.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Number of objects alive in the server.
+   */
+  public int getObjects() {
+    return objects.size();
+  }
+
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  /**
+   * Runs a task once the configured latency has elapsed, without holding the calling thread.
+   */
+  public void later(Runnable task) {
+    if (latencyMillis > 0) {
+      scheduler.schedule(task, latencyMillis, TimeUnit.MILLISECONDS);
+    } else {
+      task.run();
+    }
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public void handleRequest(final Transaction transaction, Request<JsonObject> request)
+      throws Exception {
+    if (latencyMillis > 0) {
+      // The in-process client expects the answer before the handler returns
+      Thread.sleep(latencyMillis);
+    }
+    if (request.getId() == null) {
+      return;
+    }
+    final EventSink sink = new EventSink() {
+      @Override
+      public void onEvent(JsonObject params) throws IOException {
+        transaction.getSession().sendNotification("onEvent", params);
+      }
+    };
+    transaction.sendResponse(process(sink, request.getMethod(), request.getParams()));
+  }
+
+  /**
+   * Answers one request.
+   *
+   * @param sink
+   *          where the events of the objects the request subscribes to are delivered
+   * @return the result of the JSON-RPC response
+   */
+  public JsonObject process(EventSink sink, String method, JsonObject params) {
+    requests.incrementAndGet();
+    final JsonObject result = new JsonObject();
+    result.addProperty("sessionId", sessionId);
+    switch (method) {
+      case "create":
+        result.addProperty("value", create(params));
+        break;
+      case "invoke":
+        final JsonElement value = invoke(params);
+        if (value != null) {
+          result.add("value", value);
+        }
+        break;
+      case "subscribe":
+        result.addProperty("value", subscribe(sink, params));
+        break;
+      case "release":
+        release(params.get("object").getAsString());
+        break;
+      case "transaction":
+        result.add("value", transaction(sink, params.getAsJsonArray("operations")));
+        break;
+      case "ping":
+        result.addProperty("value", "pong");
+        break;
+      default:
+        // connect, unsubscribe and describe need nothing more than the session
+        break;
+    }
+    return result;
+  }
+
+  private String create(JsonObject params) {
+    final String type = params.get("type").getAsString();
+    final JsonObject constructorParams = params.getAsJsonObject("constructorParams");
+    String id = UUID.randomUUID().toString() + "_kurento." + type;
+    if (constructorParams != null) {
+      for (String parent : new String[] { "mediaPipeline", "hub" }) {
+        if (constructorParams.has(parent)) {
+          final String owner = constructorParams.get(parent).getAsString();
+          id = owner.substring(0, owner.indexOf('_')) + "/" + id;
+          break;
+        }
+      }
+    }
+    objects.put(id, Boolean.TRUE);
+    return id;
+  }
+
+  private JsonElement invoke(JsonObject params) {
+    final String object = params.get("object").getAsString();
+    switch (params.get("operation").getAsString()) {
+      case "processOffer":
+        if (events) {
+          emit(object, "MediaStateChanged", mediaStateChanged());
+        }
+        return new JsonPrimitive(SDP_ANSWER);
+      case "generateOffer":
+        return new JsonPrimitive(SDP_ANSWER);
+      case "gatherCandidates":
+        if (events) {
+          emit(object, "IceCandidateFound", iceCandidateFound());
+        }
+        return null;
+      case "getId":
+        return new JsonPrimitive(object);
+      case "getChildren":
+        // Elements of a pipeline; hub ports belong to their hub
+        return objectsUnder(object.substring(0, object.indexOf('_')) + "/");
+      case "getPipelines":
+        return objectsUnder("");
+      default:
+        return null;
+    }
+  }
+
+  private JsonArray objectsUnder(String prefix) {
+    final JsonArray children = new JsonArray();
+    for (String id : objects.keySet()) {
+      if (id.startsWith(prefix) && id.indexOf('/', prefix.length()) < 0) {
+        children.add(new JsonPrimitive(id));
+      }
+    }
+    return children;
+  }
+
+  private String subscribe(EventSink sink, JsonObject params) {
+    final String object = params.get("object").getAsString();
+    ConcurrentMap<String, EventSink> types = subscriptions.get(object);
+    if (types == null) {
+      final ConcurrentMap<String, EventSink> created = new ConcurrentHashMap<>();
+      types = subscriptions.putIfAbsent(object, created);
+      if (types == null) {
+        types = created;
+      }
+    }
+    types.put(params.get("type").getAsString(), sink);
+    return UUID.randomUUID().toString();
+  }
+
+  private void release(String object) {
+    objects.remove(object);
+    subscriptions.remove(object);
+    if (object.indexOf('/') < 0) {
+      // Releasing a pipeline releases everything in it
+      final String prefix = object.substring(0, object.indexOf('_')) + "/";
+      removePrefixed(objects.keySet(), prefix);
+      removePrefixed(subscriptions.keySet(), prefix);
+    }
+  }
+
+  private static void removePrefixed(Set<String> ids, String prefix) {
+    for (String id : ids) {
+      if (id.startsWith(prefix)) {
+        ids.remove(id);
+      }
+    }
+  }
+
+  private JsonArray transaction(EventSink sink, JsonArray operations) {
+    final JsonArray responses = new JsonArray();
+    // Objects created by the transaction are referred to as newref:<n>, in order of creation
+    final Map<String, JsonElement> created = new HashMap<>();
+    for (JsonElement element : operations) {
+      final JsonObject operation = element.getAsJsonObject();
+      final String method = operation.get("method").getAsString();
+      final JsonObject params = operation.getAsJsonObject("params");
+      resolve(params, created);
+      final JsonObject result = process(sink, method, params);
+      if ("create".equals(method)) {
+        created.put("newref:" + created.size(), result.get("value"));
+      }
+      final JsonObject response = new JsonObject();
+      response.addProperty("jsonrpc", "2.0");
+      response.add("id", operation.get("id"));
+      response.add("result", result);
+      responses.add(response);
+    }
+    return responses;
+  }
+
+  private static void resolve(JsonObject params, Map<String, JsonElement> created) {
+    if (params == null || created.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, JsonElement> entry : params.entrySet()) {
+      final JsonElement value = entry.getValue();
+      if (value.isJsonObject()) {
+        resolve(value.getAsJsonObject(), created);
+      } else if (value.isJsonPrimitive() && created.containsKey(value.getAsString())) {
+        entry.setValue(created.get(value.getAsString()));
+      }
+    }
+  }
+
+  private static JsonObject mediaStateChanged() {
+    final JsonObject data = new JsonObject();
+    data.addProperty("oldState", "DISCONNECTED");
+    data.addProperty("newState", "CONNECTED");
+    return data;
+  }
+
+  private static JsonObject iceCandidateFound() {
+    final JsonObject candidate = new JsonObject();
+    candidate.addProperty("__module__", "kurento");
+    candidate.addProperty("__type__", "IceCandidate");
+    candidate.addProperty("candidate",
+        "candidate:1 1 UDP 2013266431 127.0.0.1 9 typ host generation 0");
+    candidate.addProperty("sdpMid", "video");
+    candidate.addProperty("sdpMLineIndex", 0);
+    final JsonObject data = new JsonObject();
+    data.add("candidate", candidate);
+    return data;
+  }
+
+  /**
+   * Notifies the subscriber of an event, if there is one, once the current answer has been sent.
+   */
+  private void emit(final String object, final String type, final JsonObject data) {
+    final ConcurrentMap<String, EventSink> types = subscriptions.get(object);
+    final EventSink sink = types != null ? types.get(type) : null;
+    if (sink == null) {
+      return;
+    }
+    data.addProperty("source", object);
+    data.addProperty("type", type);
+    data.addProperty("timestamp", Long.toString(System.currentTimeMillis() / 1000));
+    data.add("tags", new JsonArray());
+
+    final JsonObject value = new JsonObject();
+    value.add("data", data);
+    value.addProperty("object", object);
+    value.addProperty("type", type);
+    final JsonObject params = new JsonObject();
+    params.add("value", value);
+
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sink.onEvent(params);
+        } catch (IOException e) {
+          log.debug("Could not send {} of {}", type, object, e);
+        }
+      }
+    }, Math.max(1, latencyMillis), TimeUnit.MILLISECONDS);
+  }
+}
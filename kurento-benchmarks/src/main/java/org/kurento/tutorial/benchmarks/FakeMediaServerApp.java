@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.benchmarks;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+/**
+ * Runs a {@link FakeMediaServer} on {@code ws://localhost:8888/kurento}, where the tutorials look
+ * for Kurento Media Server by default. Settings are read from {@code fake-kms.properties} and can
+ * be overridden on the command line, e.g. {@code --fake-kms.latency-ms=20}.
+ *
+ * @since 6.6.2
+ */
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
+@EnableWebSocket
+public class FakeMediaServerApp implements WebSocketConfigurer {
+
+  @Value("${fake-kms.latency-ms:0}")
+  private long latencyMillis;
+
+  @Value("${fake-kms.events:false}")
+  private boolean events;
+
+  @Value("${fake-kms.max-message-kb:512}")
+  private int maxMessageKilobytes;
+
+  @Bean(destroyMethod = "shutdown")
+  public FakeMediaServer fakeMediaServer() {
+    return new FakeMediaServer(latencyMillis, events);
+  }
+
+  @Bean
+  public FakeMediaServerHandler fakeMediaServerHandler() {
+    return new FakeMediaServerHandler(fakeMediaServer());
+  }
+
+  @Bean
+  public ServletServerContainerFactoryBean createWebSocketContainer() {
+    // Transactions of a whole room can be well over the default 8 KB
+    ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+    container.setMaxTextMessageBufferSize(maxMessageKilobytes * 1024);
+    return container;
+  }
+
+  @Override
+  public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+    registry.addHandler(fakeMediaServerHandler(), "/kurento");
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Keep the settings of the application on the classpath out of the fake server
+    new SpringApplicationBuilder(FakeMediaServerApp.class)
+        .properties("spring.config.name=fake-kms").run(args);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Serves a {@link FakeMediaServer} over a WebSocket, speaking JSON-RPC 2.0 as Kurento Media
+ * Server does, so that an unmodified application can use it through {@code kms.urls}.
+ * <p>
+ * Answers are delayed by the latency of the fake server without holding the WebSocket thread, so
+ * slow answers pile up as they would on a loaded media server.
+ *
+ * @since 6.6.2
+ */
+public class FakeMediaServerHandler extends TextWebSocketHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(FakeMediaServerHandler.class);
+
+  private static final int SEND_TIME_LIMIT = 10000;
+  private static final int BUFFER_SIZE_LIMIT = 1024 * 1024;
+
+  private final FakeMediaServer kms;
+  private final JsonParser parser = new JsonParser();
+
+  // Answers and events are written from the scheduler, so every session is guarded
+  private final ConcurrentMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+  public FakeMediaServerHandler(FakeMediaServer kms) {
+    this.kms = kms;
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    sessions.put(session.getId(),
+        new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT, BUFFER_SIZE_LIMIT));
+  }
+
+  @Override
+  protected void handleTextMessage(WebSocketSession session, TextMessage message)
+      throws Exception {
+    final JsonObject request = parser.parse(message.getPayload()).getAsJsonObject();
+    final JsonElement id = request.get("id");
+    if (id == null) {
+      return;
+    }
+    final WebSocketSession out = sessions.get(session.getId());
+    if (out == null) {
+      return;
+    }
+    final String method = request.get("method").getAsString();
+    final JsonObject params = request.has("params") ? request.getAsJsonObject("params")
+        : new JsonObject();
+    final FakeMediaServer.EventSink sink = new FakeMediaServer.EventSink() {
+      @Override
+      public void onEvent(JsonObject params) throws IOException {
+        final JsonObject notification = new JsonObject();
+        notification.addProperty("jsonrpc", "2.0");
+        notification.addProperty("method", "onEvent");
+        notification.add("params", params);
+        send(out, notification);
+      }
+    };
+
+    kms.later(new Runnable() {
+      @Override
+      public void run() {
+        final JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", id);
+        try {
+          response.add("result", kms.process(sink, method, params));
+        } catch (RuntimeException e) {
+          log.debug("Could not answer {} from session {}", method, out.getId(), e);
+          final JsonObject error = new JsonObject();
+          error.addProperty("code", -32603);
+          error.addProperty("message", String.valueOf(e.getMessage()));
+          response.add("error", error);
+        }
+        try {
+          send(out, response);
+        } catch (IOException e) {
+          log.debug("Could not answer {} to session {}", method, out.getId(), e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+      throws Exception {
+    sessions.remove(session.getId());
+  }
+
+  private static void send(WebSocketSession session, JsonObject message) throws IOException {
+    if (session.isOpen()) {
+      session.sendMessage(new TextMessage(message.toString()));
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.benchmarks;
+
+import java.net.Socket;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
+
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Join storm against a running group call server. Every room is filled in turn with simulated
+ * participants, which stay for a while and then leave. Join and subscribe latency percentiles and
+ * message rates are printed as the test goes and once it ends.
+ * <p>
+ * Options are given as {@code --name=value}: {@code url}, {@code rooms}, {@code participants}
+ * (per room), {@code mode}, {@code ramp-ms} (pause between connections), {@code candidates} (per
+ * stream), {@code bulk} (subscribe to the roster with one message, as browsers do),
+ * {@code speak-ms} (while holding, a random participant reports speaking this often),
+ * {@code drop-ms} (while holding, a random participant drops its connection and resumes its
+ * session this often), {@code join-timeout-s}, {@code hold-s} and {@code report-s}. Point the
+ * server at a {@link FakeMediaServerApp} to measure the application without a media server.
+ *
+ * @since 6.6.2
+ */
+public class LoadTest {
+
+  private static final String SSL_CONTEXT_PROPERTY = "org.apache.tomcat.websocket.SSL_CONTEXT";
+
+  private final Map<String, String> options;
+  private final MetricRegistry metrics = new MetricRegistry();
+  private final List<SimulatedParticipant> participants = new ArrayList<>();
+
+  public LoadTest(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+        throw new IllegalArgumentException("Options are given as --name=value: " + arg);
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    final boolean joined = new LoadTest(options).run();
+    System.exit(joined ? 0 : 1);
+  }
+
+  /**
+   * @return whether every participant joined
+   */
+  public boolean run() throws Exception {
+    final URI url = URI.create(option("url", "wss://localhost:8443/groupcall"));
+    final int rooms = Integer.parseInt(option("rooms", "50"));
+    final int perRoom = Integer.parseInt(option("participants", "10"));
+    final String mode = options.get("mode");
+    final long rampMillis = Long.parseLong(option("ramp-ms", "10"));
+    final int candidates = Integer.parseInt(option("candidates", "2"));
+    final boolean bulk = Boolean.parseBoolean(option("bulk", "true"));
+    final long speakMillis = Long.parseLong(option("speak-ms", "0"));
+    final long dropMillis = Long.parseLong(option("drop-ms", "0"));
+    final long joinTimeoutSeconds = Long.parseLong(option("join-timeout-s", "120"));
+    final long holdSeconds = Long.parseLong(option("hold-s", "30"));
+    final long reportSeconds = Long.parseLong(option("report-s", "5"));
+
+    final StandardWebSocketClient client = createClient();
+    System.out.printf("Joining %d participants in %d rooms of %s%n", rooms * perRoom, rooms, url);
+
+    final long started = System.nanoTime();
+    long nextReport = started + TimeUnit.SECONDS.toNanos(reportSeconds);
+    for (int room = 0; room < rooms; room++) {
+      for (int user = 0; user < perRoom; user++) {
+        final SimulatedParticipant participant = new SimulatedParticipant(
+            "load" + room + "-" + user, "load" + room, mode, candidates, bulk, metrics);
+        participants.add(participant);
+        client.doHandshake(participant, new WebSocketHttpHeaders(), url);
+        if (rampMillis > 0) {
+          Thread.sleep(rampMillis);
+        }
+        if (System.nanoTime() >= nextReport) {
+          report("joining");
+          nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+        }
+      }
+    }
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(joinTimeoutSeconds);
+    int joined = 0;
+    for (SimulatedParticipant participant : participants) {
+      final long left = deadline - System.nanoTime();
+      if (participant.awaitJoined(Math.max(0, left), TimeUnit.NANOSECONDS)) {
+        joined++;
+      }
+    }
+    final double joinSeconds = (System.nanoTime() - started) / 1e9;
+    final long sentDuringJoin = metrics.meter("messages.sent").getCount();
+    final long receivedDuringJoin = metrics.meter("messages.received").getCount();
+    System.out.printf("%d of %d participants joined in %.1f s%n", joined, participants.size(),
+        joinSeconds);
+
+    final Random random = new Random();
+    final long holdStarted = System.nanoTime();
+    final long holdEnd = holdStarted + TimeUnit.SECONDS.toNanos(holdSeconds);
+    long nextSpeech = speakMillis > 0 ? holdStarted + TimeUnit.MILLISECONDS.toNanos(speakMillis)
+        : Long.MAX_VALUE;
+    long nextDrop = dropMillis > 0 ? holdStarted + TimeUnit.MILLISECONDS.toNanos(dropMillis)
+        : Long.MAX_VALUE;
+    nextReport = holdStarted + TimeUnit.SECONDS.toNanos(reportSeconds);
+    while (true) {
+      final long next = Math.min(Math.min(nextSpeech, nextDrop), Math.min(nextReport, holdEnd));
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - System.nanoTime())));
+      final long now = System.nanoTime();
+      if (now >= holdEnd) {
+        report("holding");
+        break;
+      }
+      if (now >= nextSpeech) {
+        participants.get(random.nextInt(participants.size())).speak();
+        nextSpeech += TimeUnit.MILLISECONDS.toNanos(speakMillis);
+      }
+      if (now >= nextDrop) {
+        final SimulatedParticipant participant =
+            participants.get(random.nextInt(participants.size()));
+        participant.drop();
+        client.doHandshake(participant, new WebSocketHttpHeaders(), url);
+        nextDrop += TimeUnit.MILLISECONDS.toNanos(dropMillis);
+      }
+      if (now >= nextReport) {
+        report("holding");
+        nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+      }
+    }
+
+    for (SimulatedParticipant participant : participants) {
+      participant.leave();
+    }
+
+    System.out.println();
+    System.out.printf("Join storm: %.1f participants/s, %.0f msg/s sent, %.0f msg/s received%n",
+        joined / joinSeconds, sentDuringJoin / joinSeconds, receivedDuringJoin / joinSeconds);
+    printLatency("join", metrics.timer("join"));
+    printLatency("subscribe", metrics.timer("subscribe"));
+    printLatency("resume", metrics.timer("resume"));
+    System.out.printf("Videos paused: %d, resumed: %d%n", metrics.counter("paused").getCount(),
+        metrics.counter("resumed").getCount());
+    System.out.printf("Failures: %d%n", metrics.counter("failures").getCount());
+    return joined == participants.size();
+  }
+
+  private String option(String name, String defaultValue) {
+    final String value = options.get(name);
+    return value != null ? value : defaultValue;
+  }
+
+  private void report(String phase) {
+    final Meter sent = metrics.meter("messages.sent");
+    final Meter received = metrics.meter("messages.received");
+    final Snapshot join = metrics.timer("join").getSnapshot();
+    System.out.printf(
+        "%s: %d joined, %.0f msg/s sent, %.0f msg/s received, join p50 %.1f ms p99 %.1f ms%n",
+        phase, metrics.timer("join").getCount(), sent.getOneMinuteRate(),
+        received.getOneMinuteRate(), millis(join.getMedian()), millis(join.get99thPercentile()));
+  }
+
+  private static void printLatency(String name, Timer timer) {
+    final Snapshot snapshot = timer.getSnapshot();
+    System.out.printf(
+        "%-9s n=%-7d p50 %8.1f ms  p90 %8.1f ms  p99 %8.1f ms  p99.9 %8.1f ms  max %8.1f ms%n",
+        name, timer.getCount(), millis(snapshot.getMedian()), millis(snapshot.getValue(0.9)),
+        millis(snapshot.get99thPercentile()), millis(snapshot.get999thPercentile()),
+        millis(snapshot.getMax()));
+  }
+
+  private static double millis(double nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * A client that accepts the self-signed certificate the tutorials ship with.
+   */
+  private static StandardWebSocketClient createClient() throws Exception {
+    final SSLContext ssl = SSLContext.getInstance("TLS");
+    ssl.init(null, new TrustManager[] { new TrustAll() }, new SecureRandom());
+
+    final WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+    // Rosters of large rooms do not fit the default 8 KB
+    container.setDefaultMaxTextMessageBufferSize(512 * 1024);
+    final StandardWebSocketClient client = new StandardWebSocketClient(container);
+    final Map<String, Object> properties = new HashMap<>();
+    properties.put(SSL_CONTEXT_PROPERTY, ssl);
+    client.setUserProperties(properties);
+    return client;
+  }
+
+  private static class TrustAll extends X509ExtendedTrustManager {
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  }
+}
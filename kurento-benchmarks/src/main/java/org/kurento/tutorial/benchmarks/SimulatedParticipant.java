@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * A participant of the group call driven by the load test. It follows the protocol of the
+ * browser client: it joins a room, sends an offer for its own stream and one for each stream it
+ * is told about, trickles candidates once offers are answered, and finally leaves. The offers for
+ * the roster are sent in one {@code receiveVideoFromMany} unless bulk subscription is disabled.
+ * Streams announced as paused are only subscribed to once the server resumes them. A participant
+ * whose connection is dropped resumes its session with {@code rejoinRoom} when it connects again.
+ * <p>
+ * Join latency runs from {@code joinRoom} to the answer for its own stream, resume latency from
+ * {@code rejoinRoom} to that answer; subscribe latency from each offer to its answer.
+ *
+ * @since 6.6.2
+ */
+public class SimulatedParticipant extends TextWebSocketHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(SimulatedParticipant.class);
+
+  private static final String MIXED_STREAM = "#mix";
+
+  private static final String SDP_OFFER = "v=0\r\n"
+      + "o=- 1468345183186457218 2 IN IP4 127.0.0.1\r\n" + "s=-\r\n" + "t=0 0\r\n"
+      + "a=group:BUNDLE video\r\n" + "m=video 9 UDP/TLS/RTP/SAVPF 100\r\n"
+      + "c=IN IP4 0.0.0.0\r\n" + "a=ice-ufrag:load\r\n" + "a=ice-pwd:loadtestloadtestloadtest\r\n"
+      + "a=mid:video\r\n" + "a=rtcp-mux\r\n" + "a=rtpmap:100 VP8/90000\r\n";
+
+  private final String name;
+  private final String roomName;
+  private final String mode;
+  private final int candidates;
+  private final boolean bulk;
+
+  private final Timer joinLatency;
+  private final Timer resumeLatency;
+  private final Timer subscribeLatency;
+  private final Meter sent;
+  private final Meter received;
+  private final Counter failures;
+  private final Counter paused;
+  private final Counter resumed;
+
+  private final JsonParser parser = new JsonParser();
+  private final CountDownLatch joined = new CountDownLatch(1);
+  // Offers waiting for an answer, with the time they were sent
+  private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<>();
+
+  private volatile WebSocketSession session;
+  private volatile long joinStarted;
+  private volatile String token;
+  private volatile long resumeStarted;
+
+  /**
+   * @param mode
+   *          room mode requested on join, or null to let the server choose
+   * @param candidates
+   *          candidates sent for each stream once it is answered
+   * @param bulk
+   *          whether the roster is subscribed to with a single message
+   */
+  public SimulatedParticipant(String name, String roomName, String mode, int candidates,
+      boolean bulk, MetricRegistry metrics) {
+    this.name = name;
+    this.roomName = roomName;
+    this.mode = mode;
+    this.candidates = candidates;
+    this.bulk = bulk;
+    this.joinLatency = metrics.timer("join");
+    this.resumeLatency = metrics.timer("resume");
+    this.subscribeLatency = metrics.timer("subscribe");
+    this.sent = metrics.meter("messages.sent");
+    this.received = metrics.meter("messages.received");
+    this.failures = metrics.counter("failures");
+    this.paused = metrics.counter("paused");
+    this.resumed = metrics.counter("resumed");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Waits until the answer for the own stream of this participant arrives.
+   */
+  public boolean awaitJoined(long timeout, TimeUnit unit) throws InterruptedException {
+    return joined.await(timeout, unit);
+  }
+
+  /**
+   * Reports that this participant is speaking, as the browser does when its microphone picks up
+   * a voice.
+   */
+  public void speak() {
+    final WebSocketSession current = session;
+    if (current == null || !current.isOpen()) {
+      return;
+    }
+    try {
+      final JsonObject message = new JsonObject();
+      message.addProperty("id", "speaking");
+      send(message);
+    } catch (IOException e) {
+      log.debug("PARTICIPANT {}: could not speak in room {}", name, roomName, e);
+    }
+  }
+
+  /**
+   * Drops the connection without leaving the room, as a network blip does. The participant
+   * resumes its session once it is connected again.
+   */
+  public void drop() {
+    final WebSocketSession current = session;
+    if (current == null || !current.isOpen() || token == null) {
+      return;
+    }
+    try {
+      current.close(CloseStatus.SESSION_NOT_RELIABLE);
+    } catch (IOException e) {
+      log.debug("PARTICIPANT {}: could not drop connection in room {}", name, roomName, e);
+    }
+  }
+
+  public void leave() {
+    final WebSocketSession current = session;
+    if (current == null || !current.isOpen()) {
+      return;
+    }
+    try {
+      final JsonObject message = new JsonObject();
+      message.addProperty("id", "leaveRoom");
+      send(message);
+      current.close();
+    } catch (IOException e) {
+      log.debug("PARTICIPANT {}: could not leave room {}", name, roomName, e);
+    }
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    this.session = session;
+    final JsonObject message = new JsonObject();
+    message.addProperty("name", name);
+    message.addProperty("room", roomName);
+    if (token != null) {
+      message.addProperty("id", "rejoinRoom");
+      message.addProperty("token", token);
+      resumeStarted = System.nanoTime();
+      send(message);
+      return;
+    }
+    message.addProperty("id", "joinRoom");
+    if (mode != null) {
+      message.addProperty("mode", mode);
+    }
+    joinStarted = System.nanoTime();
+    send(message);
+  }
+
+  @Override
+  protected void handleTextMessage(WebSocketSession session, TextMessage message)
+      throws Exception {
+    received.mark();
+    final JsonObject jsonMessage = parser.parse(message.getPayload()).getAsJsonObject();
+    switch (jsonMessage.get("id").getAsString()) {
+      case "existingParticipants":
+        token = jsonMessage.get("token").getAsString();
+        receiveVideoFrom(name);
+        subscribe(jsonMessage);
+        break;
+      case "newParticipantArrived":
+        if (!isPaused(jsonMessage)) {
+          receiveVideoFrom(jsonMessage.get("name").getAsString());
+        }
+        break;
+      case "videoPaused":
+        paused.inc();
+        break;
+      case "videoResumed":
+        resumed.inc();
+        receiveVideoFrom(jsonMessage.get("name").getAsString());
+        break;
+      case "roomMode":
+        subscribe(jsonMessage);
+        break;
+      case "receiveVideoAnswer":
+        answered(jsonMessage.get("name").getAsString());
+        break;
+      case "receiveVideoAnswers":
+        for (JsonElement answer : jsonMessage.getAsJsonArray("answers")) {
+          answered(answer.getAsJsonObject().get("name").getAsString());
+        }
+        break;
+      default:
+        // Candidates and departures need no answer
+        break;
+    }
+  }
+
+  @Override
+  public void handleTransportError(WebSocketSession session, Throwable exception)
+      throws Exception {
+    log.debug("PARTICIPANT {}: transport error", name, exception);
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+      throws Exception {
+    if (joined.getCount() > 0) {
+      failures.inc();
+      log.warn("PARTICIPANT {}: closed before joining room {}: {}", name, roomName, status);
+    }
+  }
+
+  private void subscribe(JsonObject roster) throws IOException {
+    if ("mcu".equals(roster.get("mode").getAsString())) {
+      receiveVideoFrom(MIXED_STREAM);
+      return;
+    }
+    final List<String> senders = new ArrayList<>();
+    for (JsonElement participant : roster.getAsJsonArray("data")) {
+      if (!isPaused(participant.getAsJsonObject())) {
+        senders.add(participant.getAsJsonObject().get("name").getAsString());
+      }
+    }
+    if (!bulk) {
+      for (String sender : senders) {
+        receiveVideoFrom(sender);
+      }
+    } else if (!senders.isEmpty()) {
+      receiveVideoFromMany(senders);
+    }
+  }
+
+  private static boolean isPaused(JsonObject participant) {
+    final JsonElement paused = participant.get("paused");
+    return paused != null && paused.getAsBoolean();
+  }
+
+  private void receiveVideoFromMany(List<String> senders) throws IOException {
+    final JsonArray offers = new JsonArray();
+    final long now = System.nanoTime();
+    for (String sender : senders) {
+      final JsonObject offer = new JsonObject();
+      offer.addProperty("sender", sender);
+      offer.addProperty("sdpOffer", SDP_OFFER);
+      offers.add(offer);
+      pending.put(sender, now);
+    }
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "receiveVideoFromMany");
+    message.add("offers", offers);
+    send(message);
+  }
+
+  private void receiveVideoFrom(String sender) throws IOException {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "receiveVideoFrom");
+    message.addProperty("sender", sender);
+    message.addProperty("sdpOffer", SDP_OFFER);
+    pending.put(sender, System.nanoTime());
+    send(message);
+  }
+
+  private void answered(String sender) throws IOException {
+    final Long offered = pending.remove(sender);
+    if (offered != null) {
+      if (name.equals(sender) && joined.getCount() > 0) {
+        joinLatency.update(System.nanoTime() - joinStarted, TimeUnit.NANOSECONDS);
+        joined.countDown();
+      } else if (name.equals(sender)) {
+        resumeLatency.update(System.nanoTime() - resumeStarted, TimeUnit.NANOSECONDS);
+      } else {
+        subscribeLatency.update(System.nanoTime() - offered, TimeUnit.NANOSECONDS);
+      }
+    }
+    for (int i = 0; i < candidates; i++) {
+      final JsonObject candidate = new JsonObject();
+      candidate.addProperty("candidate", "candidate:" + (i + 1)
+          + " 1 udp 2122260223 127.0.0.1 " + (50000 + i) + " typ host generation 0");
+      candidate.addProperty("sdpMid", "video");
+      candidate.addProperty("sdpMLineIndex", 0);
+      final JsonObject message = new JsonObject();
+      message.addProperty("id", "onIceCandidate");
+      message.add("candidate", candidate);
+      message.addProperty("name", sender);
+      send(message);
+    }
+  }
+
+  private synchronized void send(JsonObject message) throws IOException {
+    // Messages are sent both from the receiving thread and from the load test
+    session.sendMessage(new TextMessage(message.toString()));
+    sent.mark();
+  }
+}
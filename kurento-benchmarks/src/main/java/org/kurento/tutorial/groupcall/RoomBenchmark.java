@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Work a room does for every join, as the room grows: building the roster sent to the newcomer
+ * and fanning the arrival out to everybody else. Messages are queued for the participants'
+ * writers, which discard them; the benchmarks keep pace with the writers, so they measure
+ * sustained rates.
+ *
+ * @since 6.6.2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+
+  @Param({ "4", "16", "64" })
+  public int participants;
+
+  private RoomFixture fixture;
+  private UserSession newcomer;
+  private String arrival;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    fixture = new RoomFixture("room").join(participants);
+    newcomer = fixture.participants.get(participants - 1);
+
+    arrival = SignalingCodec.newParticipantArrived(newcomer, false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.close();
+  }
+
+  /**
+   * The {@code existingParticipants} message of {@link Room#sendParticipantNames(UserSession)}.
+   */
+  @Benchmark
+  public void roster() throws IOException {
+    fixture.room.sendParticipantNames(newcomer);
+    fixture.throttle(newcomer);
+  }
+
+  /**
+   * The {@code newParticipantArrived} broadcast of a join.
+   */
+  @Benchmark
+  public List<String> broadcast() {
+    final List<String> unnotified = fixture.room.broadcast(arrival, newcomer);
+    fixture.throttle();
+    return unnotified;
+  }
+}
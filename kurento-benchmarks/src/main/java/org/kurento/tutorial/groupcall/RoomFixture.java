@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.benchmarks.FakeMediaServer;
+import org.kurento.tutorial.benchmarks.NullWebSocketSession;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A room of the group call application running against a {@link FakeMediaServer}, with
+ * participants whose sessions discard what is sent to them. Rooms stay in mesh mode whatever
+ * their size, and recording services are left out, as the fake server never reports media as
+ * connected.
+ *
+ * @since 6.6.2
+ */
+class RoomFixture {
+
+  static final int QUEUE_CAPACITY = 1 << 16;
+
+  final FakeMediaServer kms = new FakeMediaServer(0, false);
+  final KurentoClient kurento = kms.createClient();
+  final MetricRegistry metrics = new MetricRegistry();
+  final OutboundDispatcher outbound = new OutboundDispatcher(QUEUE_CAPACITY, 5000, 4, 20, metrics);
+  final UserRegistry registry = new UserRegistry();
+  final SignalingExecutor signaling = new SignalingExecutor(1);
+  final Room room;
+  final List<UserSession> participants = new ArrayList<>();
+
+  RoomFixture(String roomName) {
+    final RoomContext context = new RoomContext(16, Integer.MAX_VALUE, 0, 0,
+        new BandwidthAllocator(4000, 3, 100, 2000), null, null, null,
+        new ReconnectGrace(0, metrics), signaling, metrics);
+    final MediaServer server = new MediaServer("fake", "ws://localhost/fake", 0,
+        metrics.timer("kms.create-pipeline"));
+    this.room = new Room(roomName, RoomMode.MESH, kurento.createMediaPipeline(), server, context);
+  }
+
+  /**
+   * Joins participants named {@code user0}, {@code user1}... to the room, registering them.
+   */
+  RoomFixture join(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      final UserSession user = room.join("user" + participants.size(),
+          outbound.open(new NullWebSocketSession("session" + participants.size())));
+      registry.register(user);
+      participants.add(user);
+    }
+    return this;
+  }
+
+  /**
+   * A session of the room that is not a participant: it is neither notified nor counted.
+   */
+  UserSession detached(String userName) {
+    return new UserSession(userName, room, outbound.open(new NullWebSocketSession(userName)),
+        false);
+  }
+
+  /**
+   * A call handler wired as Spring would, sharing this fixture's registry and dispatcher.
+   */
+  CallHandler callHandler() {
+    final CallHandler handler = new CallHandler();
+    inject(handler, "registry", registry);
+    inject(handler, "outbound", outbound);
+    inject(handler, "metrics", metrics);
+    inject(handler, "signaling", signaling);
+    return handler;
+  }
+
+  /**
+   * Waits for the writer of a participant once its queue is half full. Benchmarks that send
+   * call it on every operation, so that they measure sustained throughput instead of
+   * overflowing the queue and getting the participant dropped.
+   */
+  void throttle(UserSession user) {
+    final OutboundQueue queue = outbound.get(user.getSession());
+    if (queue.size() > QUEUE_CAPACITY / 2) {
+      while (queue.size() > 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  void throttle() {
+    for (UserSession participant : participants) {
+      throttle(participant);
+    }
+  }
+
+  void close() {
+    room.close();
+    signaling.shutdown();
+    outbound.shutdown();
+    kurento.destroy();
+    kms.shutdown();
+  }
+
+  private static void inject(Object target, String fieldName, Object value) {
+    try {
+      final Field field = target.getClass().getDeclaredField(fieldName);
+      field.setAccessible(true);
+      field.set(target, value);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot set " + fieldName, e);
+    }
+  }
+}
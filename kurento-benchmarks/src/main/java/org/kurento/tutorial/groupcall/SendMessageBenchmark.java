@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+
+import com.google.gson.JsonObject;
+
+/**
+ * {@link UserSession#sendMessage(String)}: serializing a typical SDP answer with the
+ * {@link SignalingCodec} and queuing it, compared with queuing a frame serialized beforehand. The
+ * serialization is also measured alone, against building and printing a JSON tree.
+ *
+ * @since 6.6.2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendMessageBenchmark {
+
+  private static final String SDP = "v=0\r\no=- 3683940283 3683940283 IN IP4 192.168.1.10\r\n"
+      + "s=Kurento Media Server\r\nc=IN IP4 192.168.1.10\r\nt=0 0\r\n"
+      + "a=msid-semantic: WMS EsQ4ujq2FoLi8BVO2jdsIG2UuPwWVmE2NAaH\r\n"
+      + "a=group:BUNDLE audio video\r\nm=audio 1 UDP/TLS/RTP/SAVPF 111 0\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\na=rtpmap:0 PCMU/8000\r\na=sendrecv\r\na=mid:audio\r\n"
+      + "a=rtcp-mux\r\na=ice-ufrag:kBdQ\r\na=ice-pwd:6B4rNvxNJahSmGq2rRVa0H\r\n"
+      + "a=fingerprint:sha-256 23:B4:2F:1C:AF:4A:1E:5C:A4:5E:5B:E0:F2:0B:0A:2C:C4:F0:84:D7\r\n"
+      + "m=video 1 UDP/TLS/RTP/SAVPF 100\r\na=rtpmap:100 VP8/90000\r\na=sendrecv\r\n"
+      + "a=mid:video\r\na=rtcp-mux\r\na=rtcp-fb:100 nack\r\na=rtcp-fb:100 nack pli\r\n"
+      + "a=rtcp-fb:100 goog-remb\r\na=ice-ufrag:kBdQ\r\na=ice-pwd:6B4rNvxNJahSmGq2rRVa0H\r\n";
+
+  private RoomFixture fixture;
+  private UserSession user;
+  private TextMessage frame;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    fixture = new RoomFixture("send").join(1);
+    user = fixture.participants.get(0);
+
+    frame = new TextMessage(SignalingCodec.receiveVideoAnswer("user1", SDP));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  public String serializeTree() {
+    final JsonObject answer = new JsonObject();
+    answer.addProperty("id", "receiveVideoAnswer");
+    answer.addProperty("name", "user1");
+    answer.addProperty("sdpAnswer", SDP);
+    return answer.toString();
+  }
+
+  @Benchmark
+  public String serialize() throws IOException {
+    return SignalingCodec.receiveVideoAnswer("user1", SDP);
+  }
+
+  @Benchmark
+  public void serializeAndSend() throws IOException {
+    user.sendMessage(SignalingCodec.receiveVideoAnswer("user1", SDP));
+    fixture.throttle(user);
+  }
+
+  @Benchmark
+  public void sendFrame() throws IOException {
+    user.sendMessage(frame);
+    fixture.throttle(user);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.tutorial.benchmarks.NullWebSocketSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Parsing and dispatch of client messages, as done by {@link CallHandler} for every frame
+ * received. The dispatch benchmarks run on the calling thread, leaving out the hand-off to the
+ * signaling executor. Parsing with the {@link SignalingCodec} is compared with parsing into a
+ * JSON tree, for a candidate and for an SDP offer.
+ *
+ * @since 6.6.2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingBenchmark {
+
+  private static final Gson gson = new GsonBuilder().create();
+
+  private static final String CANDIDATE = "{\"candidate\":\"candidate:1 1 UDP 2013266431 "
+      + "192.168.1.10 50000 typ host generation 0\",\"sdpMid\":\"video\",\"sdpMLineIndex\":0}";
+
+  static final String ICE_CANDIDATE = "{\"id\":\"onIceCandidate\",\"name\":\"user1\","
+      + "\"candidate\":" + CANDIDATE + "}";
+
+  static final String UNKNOWN = "{\"id\":\"ping\",\"name\":\"user1\"}";
+
+  private static final String SDP_OFFER;
+
+  static {
+    final StringBuilder sdp = new StringBuilder("v=0\r\no=- 1468345183186457218 2 IN IP4 "
+        + "127.0.0.1\r\ns=-\r\nt=0 0\r\na=group:BUNDLE audio video\r\n");
+    // Typical browser offers carry a few dozen codec lines per media section
+    for (int i = 0; i < 60; i++) {
+      sdp.append("a=rtpmap:").append(96 + i).append(" VP8/90000\r\na=rtcp-fb:").append(96 + i)
+          .append(" nack pli\r\n");
+    }
+    SDP_OFFER = sdp.toString();
+  }
+
+  static final String RECEIVE_VIDEO_FROM = "{\"id\":\"receiveVideoFrom\",\"sender\":\"user1\","
+      + "\"sdpOffer\":" + gson.toJson(SDP_OFFER) + "}";
+
+  private RoomFixture fixture;
+  private CallHandler handler;
+  private NullWebSocketSession session;
+  private String iceCandidates;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    fixture = new RoomFixture("signaling").join(4);
+    handler = fixture.callHandler();
+    session = (NullWebSocketSession) fixture.participants.get(0).getSession();
+
+    final StringBuilder batch = new StringBuilder("{\"id\":\"onIceCandidates\",\"candidates\":[");
+    for (int i = 0; i < 8; i++) {
+      batch.append(i > 0 ? "," : "").append("{\"name\":\"user").append(i % 4)
+          .append("\",\"candidate\":").append(CANDIDATE).append('}');
+    }
+    iceCandidates = batch.append("]}").toString();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  public JsonObject parseTree() {
+    return gson.fromJson(ICE_CANDIDATE, JsonObject.class);
+  }
+
+  @Benchmark
+  public ClientMessage parse() throws IOException {
+    return SignalingCodec.read(ICE_CANDIDATE);
+  }
+
+  @Benchmark
+  public String parseOfferTree() {
+    final JsonObject message = gson.fromJson(RECEIVE_VIDEO_FROM, JsonObject.class);
+    return message.get("sdpOffer").getAsString();
+  }
+
+  @Benchmark
+  public String parseOffer() throws IOException {
+    return SignalingCodec.read(RECEIVE_VIDEO_FROM).getSdpOffer();
+  }
+
+  @Benchmark
+  public void dispatchUnknown() throws IOException {
+    handler.handleMessage(session, UNKNOWN);
+  }
+
+  @Benchmark
+  public void dispatchIceCandidate() throws IOException {
+    handler.handleMessage(session, ICE_CANDIDATE);
+  }
+
+  @Benchmark
+  public void dispatchIceCandidates() throws IOException {
+    handler.handleMessage(session, iceCandidates);
+  }
+}
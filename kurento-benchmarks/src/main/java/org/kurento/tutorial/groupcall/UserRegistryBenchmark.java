@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * {@link UserRegistry} lookups, alone and while other threads register and remove users, as
+ * happens when many participants join and leave at once.
+ *
+ * @since 6.6.2
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserRegistryBenchmark {
+
+  private static final int USERS = 1024;
+
+  private RoomFixture fixture;
+  private final List<UserSession> users = new ArrayList<>();
+  private final List<UserSession> churning = new ArrayList<>();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fixture = new RoomFixture("registry");
+    for (int i = 0; i < USERS; i++) {
+      final UserSession user = fixture.detached("user" + i);
+      users.add(user);
+      fixture.registry.register(user);
+    }
+    for (int i = 0; i < USERS; i++) {
+      churning.add(fixture.detached("guest" + i));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  @Group("uncontended")
+  @GroupThreads(4)
+  public UserSession lookupByName() {
+    final UserSession user = random(users);
+    return fixture.registry.getByName(user.getRoomName(), user.getName());
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public UserSession lookupBySession() {
+    return fixture.registry.getBySession(random(users).getSession());
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public UserSession registerAndRemove() {
+    final UserSession guest = random(churning);
+    final WebSocketSession session = guest.getSession();
+    fixture.registry.register(guest);
+    return fixture.registry.removeBySession(session);
+  }
+
+  private static UserSession random(List<UserSession> from) {
+    return from.get(ThreadLocalRandom.current().nextInt(from.size()));
+  }
+}
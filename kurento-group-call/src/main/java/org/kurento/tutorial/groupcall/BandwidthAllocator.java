@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits the downlink budget of each participant across the streams it receives. Teachers weigh
+ * more than students, so the teacher keeps a usable picture as the room grows.
+ *
+ * @since 6.6.2
+ */
+public class BandwidthAllocator {
+
+  private final int downlinkKbps;
+  private final int teacherWeight;
+  private final int minKbps;
+  private final int maxKbps;
+
+  /**
+   * @param downlinkKbps
+   *          total video bandwidth a participant is expected to download
+   * @param teacherWeight
+   *          how many student streams a teacher stream weighs
+   * @param minKbps
+   *          lowest bandwidth given to a stream, however many there are
+   * @param maxKbps
+   *          highest bandwidth given to a stream, however few there are
+   */
+  public BandwidthAllocator(int downlinkKbps, int teacherWeight, int minKbps, int maxKbps) {
+    this.downlinkKbps = downlinkKbps;
+    this.teacherWeight = teacherWeight;
+    this.minKbps = minKbps;
+    this.maxKbps = maxKbps;
+  }
+
+  /**
+   * Shares the downlink of one subscriber.
+   *
+   * @param publishers
+   *          the participants the subscriber receives
+   * @return the bandwidth for each publisher, in kbps
+   */
+  public Map<String, Integer> split(Collection<UserSession> publishers) {
+    int totalWeight = 0;
+    for (UserSession publisher : publishers) {
+      totalWeight += weightOf(publisher);
+    }
+
+    final Map<String, Integer> shares = new HashMap<>();
+    for (UserSession publisher : publishers) {
+      shares.put(publisher.getName(), clamp(downlinkKbps * weightOf(publisher) / totalWeight));
+    }
+    return shares;
+  }
+
+  /**
+   * Bandwidth for a subscriber that receives a single stream, such as the mix of an MCU room.
+   */
+  public int single() {
+    return clamp(downlinkKbps);
+  }
+
+  /**
+   * Bandwidth for a stream that is one of several tiles in a mix.
+   */
+  public int tile(int participants) {
+    return clamp(downlinkKbps / Math.max(1, participants));
+  }
+
+  public int getMaxKbps() {
+    return maxKbps;
+  }
+
+  private int weightOf(UserSession publisher) {
+    return publisher.getIsTeacher() ? teacherWeight : 1;
+  }
+
+  private int clamp(int kbps) {
+    return Math.max(minKbps, Math.min(maxKbps, kbps));
+  }
+}
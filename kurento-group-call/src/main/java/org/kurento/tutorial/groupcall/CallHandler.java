@@ -18,8 +18,10 @@
 package org.kurento.tutorial.groupcall;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.kurento.client.IceCandidate;
+import org.kurento.commons.exception.KurentoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,9 +30,8 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * 
@@ -41,7 +42,10 @@ public class CallHandler extends TextWebSocketHandler {
 
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
 
-  private static final Gson gson = new GsonBuilder().create();
+  /**
+   * Times a join looks the room up again when the room it found closes before the join.
+   */
+  private static final int JOIN_ATTEMPTS = 3;
 
   @Autowired
   private RoomManager roomManager;
@@ -49,70 +53,321 @@ public class CallHandler extends TextWebSocketHandler {
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private SignalingExecutor signaling;
+
+  @Autowired
+  private OutboundDispatcher outbound;
+
+  @Autowired
+  private MetricRegistry metrics;
+
+  @Autowired
+  private ReconnectGrace grace;
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    outbound.open(session);
+  }
+
   @Override
-  public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-    final JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+  public void handleTextMessage(final WebSocketSession session, final TextMessage message)
+      throws Exception {
+    signaling.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          handleMessage(session, message.getPayload());
+        } catch (Exception e) {
+          log.error("Error handling message from session {}", session.getId(), e);
+        }
+      }
+    });
+  }
+
+  void handleMessage(WebSocketSession session, String payload) throws IOException {
+    final ClientMessage message = SignalingCodec.read(payload);
 
     final UserSession user = registry.getBySession(session);
 
     if (user != null) {
-      log.debug("Incoming message from user '{}': {}", user.getName(), jsonMessage);
+      log.debug("Incoming message from user '{}': {}", user.getName(), payload);
     } else {
-      log.debug("Incoming message from new user: {}", jsonMessage);
-    }
-
-    switch (jsonMessage.get("id").getAsString()) {
-      case "joinRoom":
-        joinRoom(jsonMessage, session);
-        break;
-      case "receiveVideoFrom":
-        final String senderName = jsonMessage.get("sender").getAsString();
-        final UserSession sender = registry.getByName(senderName);
-        final String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-        user.receiveVideoFrom(sender, sdpOffer);
-        break;
-      case "leaveRoom":
-        leaveRoom(user);
-        break;
-      case "onIceCandidate":
-        JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
-
-        if (user != null) {
-          IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
-              candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-          user.addCandidate(cand, jsonMessage.get("name").getAsString());
-        }
-        break;
-      default:
-        break;
+      log.debug("Incoming message from new user: {}", payload);
+    }
+
+    // Unknown ids share one timer, so clients cannot create metrics at will
+    final Timer.Context timer = metrics.timer(
+        MetricRegistry.name("signaling", message.getType().getId())).time();
+    try {
+      switch (message.getType()) {
+        case JOIN_ROOM:
+          joinRoom(message, session);
+          break;
+        case REJOIN_ROOM:
+          rejoinRoom(message, session);
+          break;
+        case RECEIVE_VIDEO_FROM:
+          if (user != null) {
+            receiveVideoFrom(user, message.getSender(), message.getSdpOffer());
+          }
+          break;
+        case RECEIVE_VIDEO_FROM_MANY:
+          if (user != null) {
+            receiveVideoFromMany(user, message.getOffers());
+          }
+          break;
+        case LEAVE_ROOM:
+          if (user != null) {
+            leaveRoom(user);
+          }
+          break;
+        case ON_ICE_CANDIDATE:
+          if (user != null) {
+            user.addCandidate(message.getCandidate(), message.getName());
+          }
+          break;
+        case ON_ICE_CANDIDATES:
+          if (user != null) {
+            user.addCandidates(message.getCandidates());
+          }
+          break;
+        case SPEAKING:
+          if (user != null) {
+            final Room room = roomManager.findRoom(user.getRoomName());
+            if (room != null) {
+              room.speaking(user);
+            }
+          }
+          break;
+        case VIEWPORT:
+          if (user != null) {
+            final Room room = roomManager.findRoom(user.getRoomName());
+            if (room != null) {
+              room.viewport(user, message.getVisible());
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    } finally {
+      timer.stop();
     }
   }
 
   @Override
-  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-    UserSession user = registry.removeBySession(session);
-    if (user != null) {
-      user.clearRecording();
-      roomManager.getRoom(user.getRoomName()).leave(user);
-    }
+  public void afterConnectionClosed(final WebSocketSession session, CloseStatus status)
+      throws Exception {
+    // Queued behind any message still pending for this session
+    signaling.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        final UserSession user = registry.getBySession(session);
+        if (user == null) {
+          return;
+        }
+        synchronized (user) {
+          // Unless the user already resumed from another connection
+          if (registry.detach(session) != user) {
+            return;
+          }
+          log.info("USER {}: connection lost, keeping its place in room {} for {} ms",
+              user.getName(), user.getRoomName(), grace.getGraceMillis());
+          grace.park(user, new Runnable() {
+            @Override
+            public void run() {
+              expire(user);
+            }
+          });
+        }
+      }
+    });
+    signaling.release(session.getId());
+    outbound.close(session);
+  }
+
+  /**
+   * Makes a user that did not resume its session leave its room.
+   */
+  private void expire(final UserSession user) {
+    final String key = user.getSession().getId();
+    signaling.execute(key, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          registry.unregister(user);
+          user.clearRecording();
+          leave(user);
+        } catch (IOException e) {
+          log.warn("Error closing session {}", key, e);
+        }
+      }
+    });
+    signaling.release(key);
   }
 
-  private void joinRoom(JsonObject params, WebSocketSession session) throws IOException {
-    final String roomName = params.get("room").getAsString();
-    final String name = params.get("name").getAsString();
+  private void joinRoom(ClientMessage params, WebSocketSession session) throws IOException {
+    final String roomName = params.getRoom();
+    final String name = params.getName();
+    final RoomMode mode = RoomMode.parse(params.getMode(), null);
     log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
+    if (params.getMode() != null && mode == null) {
+      log.warn("PARTICIPANT {}: room mode {} cannot be chosen, using the default", name,
+          params.getMode());
+    }
+    if (Room.MIXED_STREAM.equals(name)) {
+      log.warn("PARTICIPANT {}: reserved name, join refused", name);
+      return;
+    }
 
-    Room room = roomManager.getRoom(roomName);
-    final UserSession user = room.join(name, session);
-    registry.register(user);
+    if (registry.getBySession(session) != null || registry.exists(roomName, name)) {
+      log.warn("PARTICIPANT {}: already in room {} or in another one, join refused", name,
+          roomName);
+      return;
+    }
+
+    for (int attempt = 1; attempt <= JOIN_ATTEMPTS; attempt++) {
+      final Room room = roomManager.getRoom(roomName, mode);
+      final UserSession user;
+      try {
+        user = room.createParticipant(name, outbound.get(session));
+      } catch (KurentoException e) {
+        if (!room.isClosed()) {
+          throw e;
+        }
+        continue;
+      }
+      // Registered before the room announces it, so others can subscribe to it right away
+      if (!registry.register(user)) {
+        user.close();
+        return;
+      }
+      final UserSession joined;
+      try {
+        joined = room.join(user);
+      } catch (IOException | RuntimeException e) {
+        registry.unregister(user);
+        throw e;
+      }
+      if (joined != null) {
+        return;
+      }
+      // Closed between the lookup and the join: its endpoints went away with the pipeline, and
+      // the next lookup finds a new room
+      registry.unregister(user);
+    }
+    log.warn("PARTICIPANT {}: room {} kept closing, join refused", name, roomName);
+  }
+
+  /**
+   * Resumes the session of a user that reconnected, after checking its token. A connection the
+   * server had not noticed was dead yet is closed; if there is nothing to resume, the user joins
+   * anew.
+   */
+  private void rejoinRoom(ClientMessage params, WebSocketSession session) throws IOException {
+    final String roomName = params.getRoom();
+    final String name = params.getName();
+    if (roomName == null || name == null || registry.getBySession(session) != null) {
+      return;
+    }
+    final UserSession user = registry.getByName(roomName, name);
+    if (user == null || !user.getResumeToken().equals(params.getToken())) {
+      log.info("PARTICIPANT {}: nothing to resume in room {}, joining anew", name, roomName);
+      joinRoom(params, session);
+      return;
+    }
+
+    final WebSocketSession previous;
+    final Room room;
+    synchronized (user) {
+      previous = user.getSession();
+      if (!grace.reclaim(user) && registry.detach(previous) != user) {
+        // Expiring: the client retries and then joins anew
+        log.warn("PARTICIPANT {}: grace period over in room {}, resume refused", name, roomName);
+        outbound.get(session).close(CloseStatus.SERVICE_RESTARTED);
+        return;
+      }
+      room = roomManager.findRoom(roomName);
+      if (room != null) {
+        user.rebind(outbound.get(session));
+        registry.attach(user);
+      } else {
+        registry.unregister(user);
+      }
+    }
+    final OutboundQueue stale = outbound.get(previous);
+    if (stale != null) {
+      stale.close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+    if (room == null) {
+      log.info("PARTICIPANT {}: room {} was closed meanwhile, joining anew", name, roomName);
+      joinRoom(params, session);
+      return;
+    }
+    log.info("PARTICIPANT {}: resuming session in room {}", name, roomName);
+    try {
+      room.resume(user);
+    } catch (IOException e) {
+      // The client tries to resume again once the connection is closed
+      log.warn("PARTICIPANT {}: could not resume session in room {}", name, roomName, e);
+      outbound.get(session).close(CloseStatus.SERVICE_RESTARTED);
+    }
+  }
+
+  private void receiveVideoFrom(UserSession user, String senderName, String sdpOffer)
+      throws IOException {
+    if (Room.MIXED_STREAM.equals(senderName)) {
+      user.receiveMix(sdpOffer);
+      return;
+    }
+    final UserSession sender = registry.getByName(user.getRoomName(), senderName);
+    if (sender != null) {
+      user.receiveVideoFrom(sender, sdpOffer);
+    } else {
+      log.debug("USER {}: {} is not in room {}", user.getName(), senderName, user.getRoomName());
+    }
+  }
+
+  /**
+   * Subscribes a user to several senders at once. The mixed stream, if asked for, is negotiated on
+   * its own, as it does not come from a participant.
+   */
+  private void receiveVideoFromMany(UserSession user, Map<String, String> offers)
+      throws IOException {
+    final Map<UserSession, String> senders = new LinkedHashMap<>();
+    for (final Map.Entry<String, String> offer : offers.entrySet()) {
+      if (Room.MIXED_STREAM.equals(offer.getKey())) {
+        user.receiveMix(offer.getValue());
+        continue;
+      }
+      final UserSession sender = registry.getByName(user.getRoomName(), offer.getKey());
+      if (sender != null) {
+        senders.put(sender, offer.getValue());
+      } else {
+        log.debug("USER {}: {} is not in room {}", user.getName(), offer.getKey(),
+            user.getRoomName());
+      }
+    }
+    if (!senders.isEmpty()) {
+      user.receiveVideoFromMany(senders);
+    }
   }
 
   private void leaveRoom(UserSession user) throws IOException {
-    final Room room = roomManager.getRoom(user.getRoomName());
-    room.leave(user);
+    leave(user);
     registry.removeBySession(user.getSession());
-    if (room.getParticipants().isEmpty()) {
-      roomManager.removeRoom(room);
+  }
+
+  /**
+   * Takes a user out of its room, closing the room if nobody is left in it.
+   */
+  private void leave(UserSession user) throws IOException {
+    final Room room = roomManager.findRoom(user.getRoomName());
+    if (room == null) {
+      return;
     }
+    room.leave(user);
+    roomManager.removeRoomIfEmpty(room);
   }
 }
@@ -0,0 +1,323 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A message received from a client. It is read field by field from the frame, without building a
+ * JSON tree: fields unknown to the protocol are skipped, and the SDP offer is copied out of the
+ * frame only once.
+ *
+ * @since 6.6.2
+ */
+final class ClientMessage {
+
+  /**
+   * The messages clients send, by {@code id}.
+   */
+  enum Type {
+    JOIN_ROOM("joinRoom"), REJOIN_ROOM("rejoinRoom"), RECEIVE_VIDEO_FROM("receiveVideoFrom"),
+    RECEIVE_VIDEO_FROM_MANY("receiveVideoFromMany"), LEAVE_ROOM("leaveRoom"),
+    ON_ICE_CANDIDATE("onIceCandidate"), ON_ICE_CANDIDATES("onIceCandidates"),
+    SPEAKING("speaking"), VIEWPORT("viewport"), UNKNOWN("unknown");
+
+    private static final Map<String, Type> byId = new HashMap<>();
+
+    static {
+      for (Type type : values()) {
+        byId.put(type.id, type);
+      }
+    }
+
+    private final String id;
+
+    Type(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return the type with the given id; ids outside the protocol are all {@link #UNKNOWN}
+     */
+    static Type of(String id) {
+      final Type type = byId.get(id);
+      return type != null ? type : UNKNOWN;
+    }
+  }
+
+  private Type type = Type.UNKNOWN;
+  private String name;
+  private String room;
+  private String mode;
+  private String token;
+  private String sender;
+  private String sdpOffer;
+  private IceCandidate candidate;
+  private Map<String, List<IceCandidate>> candidates = Collections.emptyMap();
+  private Map<String, String> offers = Collections.emptyMap();
+  private List<String> visible = Collections.emptyList();
+
+  private ClientMessage() {
+  }
+
+  /**
+   * Reads one frame.
+   *
+   * @throws IOException
+   *           if the frame is not a JSON object
+   */
+  static ClientMessage read(String payload) throws IOException {
+    final ClientMessage message = new ClientMessage();
+    final JsonReader reader = new JsonReader(new StringReader(payload));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "id":
+            message.type = Type.of(nextString(reader));
+            break;
+          case "name":
+            message.name = nextString(reader);
+            break;
+          case "room":
+            message.room = nextString(reader);
+            break;
+          case "mode":
+            message.mode = nextString(reader);
+            break;
+          case "token":
+            message.token = nextString(reader);
+            break;
+          case "sender":
+            message.sender = nextString(reader);
+            break;
+          case "sdpOffer":
+            message.sdpOffer = nextString(reader);
+            break;
+          case "candidate":
+            message.candidate = readCandidate(reader);
+            break;
+          case "candidates":
+            message.candidates = readCandidates(reader);
+            break;
+          case "offers":
+            message.offers = readOffers(reader);
+            break;
+          case "visible":
+            message.visible = readNames(reader);
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException e) {
+      // Thrown by the reader when a value is not of the expected kind
+      throw new IOException("Malformed message: " + e.getMessage(), e);
+    } finally {
+      reader.close();
+    }
+    return message;
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "candidate":
+          candidate = nextString(reader);
+          break;
+        case "sdpMid":
+          sdpMid = nextString(reader);
+          break;
+        case "sdpMLineIndex":
+          sdpMLineIndex = reader.nextInt();
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  private static Map<String, List<IceCandidate>> readCandidates(JsonReader reader)
+      throws IOException {
+    final Map<String, List<IceCandidate>> candidates = new LinkedHashMap<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String name = null;
+      IceCandidate candidate = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "name":
+            name = nextString(reader);
+            break;
+          case "candidate":
+            candidate = readCandidate(reader);
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+
+      List<IceCandidate> forName = candidates.get(name);
+      if (forName == null) {
+        forName = new ArrayList<>();
+        candidates.put(name, forName);
+      }
+      forName.add(candidate);
+    }
+    reader.endArray();
+    return candidates;
+  }
+
+  private static Map<String, String> readOffers(JsonReader reader) throws IOException {
+    final Map<String, String> offers = new LinkedHashMap<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String sender = null;
+      String sdpOffer = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "sender":
+            sender = nextString(reader);
+            break;
+          case "sdpOffer":
+            sdpOffer = nextString(reader);
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      if (sender != null && sdpOffer != null) {
+        offers.put(sender, sdpOffer);
+      }
+    }
+    reader.endArray();
+    return offers;
+  }
+
+  private static List<String> readNames(JsonReader reader) throws IOException {
+    final List<String> names = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      final String name = nextString(reader);
+      if (name != null) {
+        names.add(name);
+      }
+    }
+    reader.endArray();
+    return names;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * @return the room mode asked for on join, or null
+   */
+  public String getMode() {
+    return mode;
+  }
+
+  /**
+   * @return the resume token of a {@code rejoinRoom} message
+   */
+  public String getToken() {
+    return token;
+  }
+
+  public String getSender() {
+    return sender;
+  }
+
+  public String getSdpOffer() {
+    return sdpOffer;
+  }
+
+  public IceCandidate getCandidate() {
+    return candidate;
+  }
+
+  /**
+   * @return the candidates of an {@code onIceCandidates} message, grouped by participant name
+   */
+  public Map<String, List<IceCandidate>> getCandidates() {
+    return candidates;
+  }
+
+  /**
+   * @return the SDP offers of a {@code receiveVideoFromMany} message, by sender name
+   */
+  public Map<String, String> getOffers() {
+    return offers;
+  }
+
+  /**
+   * @return the participants whose tiles are on screen, as reported by a {@code viewport} message
+   */
+  public List<String> getVisible() {
+    return visible;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the ffmpeg invocation that turns a recording into the renditions served to students.
+ * The recording is decoded once and every rendition is written from the same encode through the
+ * tee muxer: the HLS playlist always, and an MP4 download only when asked for.
+ * <p>
+ * When remuxing is enabled and the recording already holds H.264, the video is copied instead of
+ * re-encoded. KMS records VP8 into WebM by default, which HLS cannot carry, so most recordings
+ * are still encoded once.
+ *
+ * @since 6.6.2
+ */
+public class ConversionPipeline {
+
+  private static final Logger log = LoggerFactory.getLogger(ConversionPipeline.class);
+
+  private final boolean remux;
+  private final String resolution;
+  private final int segmentSeconds;
+
+  /**
+   * @param remux
+   *          whether to copy streams that are already in a codec the renditions accept
+   * @param resolution
+   *          frame size of re-encoded video, as WIDTHxHEIGHT
+   * @param segmentSeconds
+   *          target length of the HLS segments
+   */
+  public ConversionPipeline(boolean remux, String resolution, int segmentSeconds) {
+    this.remux = remux;
+    this.resolution = resolution;
+    this.segmentSeconds = segmentSeconds;
+  }
+
+  /**
+   * The command converting one recording.
+   *
+   * @param source
+   *          path of the recording
+   * @param basePath
+   *          path of the renditions without extension
+   * @param mp4
+   *          whether to also write an MP4 download
+   */
+  public List<String> command(String source, String basePath, boolean mp4) {
+    final boolean copyVideo = remux && "h264".equals(probe(source, "v:0"));
+    final boolean copyAudio = remux && "aac".equals(probe(source, "a:0"));
+
+    final List<String> command = new ArrayList<>(Arrays.asList("ffmpeg", "-nostdin", "-y",
+        "-i", source, "-map", "0:v:0", "-map", "0:a:0?"));
+    if (copyVideo) {
+      command.addAll(Arrays.asList("-c:v", "copy"));
+    } else {
+      command.addAll(Arrays.asList("-c:v", "libx264", "-profile:v", "baseline", "-level", "3.0",
+          "-s", resolution));
+    }
+    if (copyAudio) {
+      command.addAll(Arrays.asList("-c:a", "copy"));
+    } else {
+      command.addAll(Arrays.asList("-c:a", "aac", "-strict", "-2"));
+    }
+
+    final StringBuilder outputs = new StringBuilder();
+    outputs.append("[f=hls:hls_time=").append(segmentSeconds)
+        .append(":hls_list_size=0:start_number=0]").append(basePath).append(".m3u8");
+    if (mp4) {
+      outputs.append("|[f=mp4:movflags=+faststart]").append(basePath).append(".mp4");
+    }
+    // MP4 needs the codec headers out of band; the HLS muxer adds them back in band
+    command.addAll(Arrays.asList("-flags", "+global_header", "-f", "tee", outputs.toString()));
+    return command;
+  }
+
+  /**
+   * Name of the codec of one stream of a file, or null if it could not be found.
+   *
+   * @param stream
+   *          ffprobe stream specifier, such as v:0
+   */
+  String probe(String file, String stream) {
+    try {
+      final Process process = new ProcessBuilder("ffprobe", "-v", "error", "-select_streams",
+          stream, "-show_entries", "stream=codec_name", "-of", "csv=p=0", file)
+          .redirectError(Redirect.INHERIT).start();
+      try (BufferedReader out = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        final String codec = out.readLine();
+        return process.waitFor() == 0 && codec != null ? codec.trim() : null;
+      } finally {
+        process.destroy();
+      }
+    } catch (IOException e) {
+      log.warn("Could not probe {} of {}: {}", stream, file, e.getMessage());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+}
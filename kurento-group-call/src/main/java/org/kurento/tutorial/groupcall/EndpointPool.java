@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * WebRTC endpoints of one room. A few endpoints are kept built in advance, so that publishing and
+ * subscribing can go straight to SDP negotiation. The room sets how many idle endpoints to keep
+ * as participants come and go. Missing endpoints are built, and surplus ones released, in a single
+ * transaction each time.
+ *
+ * @since 6.6.2
+ */
+class EndpointPool {
+
+  private static final Logger log = LoggerFactory.getLogger(EndpointPool.class);
+
+  private final String roomName;
+  private final MediaPipeline pipeline;
+  private final MediaServer server;
+  private final int maxIdle;
+  private final Timer buildTimer;
+
+  private final Queue<WebRtcEndpoint> idle = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger building = new AtomicInteger();
+  private final AtomicInteger live = new AtomicInteger();
+
+  private volatile int target;
+  private volatile boolean closed;
+
+  EndpointPool(String roomName, MediaPipeline pipeline, MediaServer server, int maxIdle,
+      Timer buildTimer) {
+    this.roomName = roomName;
+    this.pipeline = pipeline;
+    this.server = server;
+    this.maxIdle = maxIdle;
+    this.buildTimer = buildTimer;
+  }
+
+  /**
+   * Hands out an endpoint, built in advance if there is one ready.
+   */
+  WebRtcEndpoint take() {
+    WebRtcEndpoint endpoint = idle.poll();
+    if (endpoint == null) {
+      log.debug("ROOM {}: no idle endpoint, building one", roomName);
+      final Timer.Context timer = buildTimer.time();
+      endpoint = new WebRtcEndpoint.Builder(pipeline).build();
+      timer.stop();
+      created();
+    }
+    refill();
+    return endpoint;
+  }
+
+  /**
+   * Adds the release of an endpoint previously obtained from {@link #take()} to a transaction.
+   */
+  void release(WebRtcEndpoint endpoint, Transaction tx) {
+    released();
+    endpoint.release(tx);
+  }
+
+  /**
+   * Changes the number of idle endpoints to keep, building the missing ones in the background and
+   * releasing the ones no longer needed.
+   */
+  void resize(int idleEndpoints) {
+    target = Math.min(maxIdle, idleEndpoints);
+    refill();
+    trim();
+  }
+
+  /**
+   * Number of endpoints of this pool alive in the media server, idle or in use.
+   */
+  int getLive() {
+    return live.get();
+  }
+
+  int getIdle() {
+    return idle.size();
+  }
+
+  void collectIdle(Collection<MediaObject> elements) {
+    elements.addAll(idle);
+  }
+
+  /**
+   * Stops refilling. Endpoints are not released one by one, as they go away with the pipeline.
+   *
+   * @return the number of endpoints that were still alive
+   */
+  int close() {
+    closed = true;
+    idle.clear();
+    return live.getAndSet(0);
+  }
+
+  private void refill() {
+    int missing;
+    while (true) {
+      if (closed) {
+        return;
+      }
+      final int inFlight = building.get();
+      missing = target - idle.size() - inFlight;
+      if (missing <= 0) {
+        return;
+      }
+      if (building.compareAndSet(inFlight, inFlight + missing)) {
+        break;
+      }
+    }
+
+    final Transaction tx = pipeline.beginTransaction();
+    final List<WebRtcEndpoint> batch = new ArrayList<>(missing);
+    for (int i = 0; i < missing; i++) {
+      batch.add(new WebRtcEndpoint.Builder(pipeline).build(tx));
+    }
+    tx.commit(new TimedContinuation<>(buildTimer, new Continuation<Void>() {
+
+      @Override
+      public void onSuccess(Void result) throws Exception {
+        building.addAndGet(-batch.size());
+        if (!closed) {
+          for (final WebRtcEndpoint endpoint : batch) {
+            created();
+            idle.add(endpoint);
+          }
+          trim();
+        }
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        building.addAndGet(-batch.size());
+        log.warn("ROOM {}: could not build {} idle endpoints", roomName, batch.size(), cause);
+      }
+    }));
+  }
+
+  private void trim() {
+    Transaction tx = null;
+    int released = 0;
+    while (idle.size() > target) {
+      final WebRtcEndpoint endpoint = idle.poll();
+      if (endpoint == null) {
+        break;
+      }
+      if (tx == null) {
+        tx = pipeline.beginTransaction();
+      }
+      release(endpoint, tx);
+      released++;
+    }
+    if (tx != null) {
+      tx.commit(new LoggingContinuation<Void>(log,
+          "ROOM " + roomName + ": release " + released + " idle endpoints"));
+    }
+  }
+
+  private void created() {
+    live.incrementAndGet();
+    server.endpointCreated();
+  }
+
+  private void released() {
+    live.decrementAndGet();
+    server.endpointReleased();
+  }
+}
@@ -17,14 +17,17 @@
 
 package org.kurento.tutorial.groupcall;
 
-import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import com.codahale.metrics.MetricRegistry;
+
 /**
  *
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -44,14 +47,119 @@ public class GroupCallApp implements WebSocketConfigurer {
     return new RoomManager();
   }
 
+  @Bean
+  public RoomContext roomContext(TranscodeService transcodeService,
+      RecordingStorage recordingStorage, RecordingCatalog recordingCatalog,
+      ReconnectGrace reconnectGrace, SignalingExecutor signalingExecutor,
+      @Value("${room.max-idle-endpoints:16}") int maxIdleEndpoints,
+      @Value("${room.mcu-threshold:8}") int mcuThreshold,
+      @Value("${room.mesh-threshold:5}") int meshThreshold,
+      @Value("${room.last-n:4}") int lastN,
+      @Value("${bandwidth.downlink-kbps:4000}") int downlinkKbps,
+      @Value("${bandwidth.teacher-weight:3}") int teacherWeight,
+      @Value("${bandwidth.min-kbps:100}") int minKbps,
+      @Value("${bandwidth.max-kbps:2000}") int maxKbps) {
+    return new RoomContext(maxIdleEndpoints, mcuThreshold, meshThreshold, lastN,
+        new BandwidthAllocator(downlinkKbps, teacherWeight, minKbps, maxKbps), transcodeService,
+        recordingStorage, recordingCatalog, reconnectGrace, signalingExecutor, metricRegistry());
+  }
+
+  @Bean
+  public ReconnectGrace reconnectGrace(
+      @Value("${session.reconnect-grace-ms:10000}") long graceMillis) {
+    return new ReconnectGrace(graceMillis, metricRegistry());
+  }
+
+  @Bean
+  public RoomReaper roomReaper(RoomManager roomManager, UserRegistry registry,
+      MediaServerPool mediaServerPool, ReconnectGrace reconnectGrace,
+      @Value("${room.reap-after-ms:60000}") long ttlMillis,
+      @Value("${room.reap-interval-ms:30000}") long intervalMillis) {
+    return new RoomReaper(roomManager, registry, mediaServerPool, reconnectGrace, ttlMillis,
+        intervalMillis, metricRegistry());
+  }
+
   @Bean
   public CallHandler groupCallHandler() {
     return new CallHandler();
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public SignalingExecutor signalingExecutor(@Value("${signaling.threads:32}") int threads) {
+    return new SignalingExecutor(threads);
+  }
+
+  @Bean
+  public MetricRegistry metricRegistry() {
+    return new MetricRegistry();
+  }
+
+  @Bean
+  public OutboundDispatcher outboundDispatcher(
+      @Value("${outbound.queue-capacity:256}") int capacity,
+      @Value("${outbound.send-timeout-ms:5000}") long sendTimeoutMillis,
+      @Value("${outbound.writer-threads:32}") int writerThreads,
+      @Value("${ice.batch-window-ms:20}") long iceBatchWindowMillis) {
+    return new OutboundDispatcher(capacity, sendTimeoutMillis, writerThreads,
+        iceBatchWindowMillis, metricRegistry());
+  }
+
+  @Bean
+  public MediaServerPool mediaServerPool(
+      @Value("${kms.urls:${kms.url:ws://localhost:8888/kurento}}") String urls,
+      @Value("${kms.pipeline-weight:4}") int pipelineWeight,
+      @Value("${kms.warm-pipelines:2}") int warmPipelines,
+      @Value("${kms.retry-interval-ms:10000}") long retryIntervalMillis) {
+    return new MediaServerPool(urls, pipelineWeight, warmPipelines, retryIntervalMillis,
+        metricRegistry());
+  }
+
+  @Bean
+  public RecordingStorage recordingStorage(
+      @Value("${storage.root:/tmp/recordings}") String root,
+      @Value("${storage.min-free-mb:2048}") long minFreeMegabytes,
+      @Value("${storage.retention-days:30}") int retentionDays,
+      @Value("${storage.check-interval-ms:60000}") long checkIntervalMillis) {
+    return new RecordingStorage(root, minFreeMegabytes * 1024 * 1024, retentionDays,
+        checkIntervalMillis, metricRegistry());
+  }
+
+  @Bean
+  public RecordingController recordingController(
+      @Value("${recordings.playlist-cache-size:256}") int playlistCacheSize) {
+    return new RecordingController(playlistCacheSize, metricRegistry());
+  }
+
+  @Bean
+  public PrometheusController prometheusController() {
+    return new PrometheusController(metricRegistry());
+  }
+
+  @Bean
+  public RecordingCatalog recordingCatalog(JdbcTemplate jdbc, RecordingStorage storage) {
+    return new RecordingCatalog(jdbc, storage);
+  }
+
+  @Bean
+  public RecordingCatalogController recordingCatalogController() {
+    return new RecordingCatalogController();
+  }
+
+  @Bean
+  public ConversionPipeline conversionPipeline(@Value("${transcode.remux:true}") boolean remux,
+      @Value("${transcode.resolution:1280x960}") String resolution,
+      @Value("${transcode.hls-segment-seconds:10}") int segmentSeconds) {
+    return new ConversionPipeline(remux, resolution, segmentSeconds);
+  }
+
+  @Bean
+  public TranscodeService transcodeService(ConversionPipeline conversionPipeline,
+      RecordingCatalog recordingCatalog,
+      @Value("${transcode.workers:0}") int workers,
+      @Value("${transcode.journal-dir:/tmp/recordings/.journal}") String journalDir,
+      @Value("${transcode.mp4-download:false}") boolean mp4ByDefault) {
+    return new TranscodeService(workers, journalDir, conversionPipeline, recordingCatalog,
+        mp4ByDefault, metricRegistry());
   }
 
   public static void main(String[] args) throws Exception {
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Collects the candidates gathered by all the endpoints of one session during a short window and
+ * sends them as a single {@code iceCandidates} message.
+ *
+ * @since 6.6.2
+ */
+class IceCandidateBatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(IceCandidateBatcher.class);
+
+  private final OutboundQueue outbound;
+  private final ScheduledExecutorService timer;
+  private final long windowMillis;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  // The candidates of the current batch, with the participant each belongs to
+  private List<String> pendingNames = new ArrayList<>();
+  private List<IceCandidate> pending = new ArrayList<>();
+  private boolean flushScheduled;
+
+  IceCandidateBatcher(OutboundQueue outbound, ScheduledExecutorService timer, long windowMillis) {
+    this.outbound = outbound;
+    this.timer = timer;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Adds a candidate to the current batch, opening a new flush window if there is none.
+   *
+   * @param name
+   *          the participant whose endpoint gathered the candidate
+   * @param candidate
+   *          the gathered candidate
+   */
+  void add(String name, IceCandidate candidate) {
+    synchronized (this) {
+      pendingNames.add(name);
+      pending.add(candidate);
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    timer.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void flush() {
+    final List<String> names;
+    final List<IceCandidate> batch;
+    synchronized (this) {
+      names = pendingNames;
+      batch = pending;
+      pendingNames = new ArrayList<>();
+      pending = new ArrayList<>();
+      flushScheduled = false;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    try {
+      outbound.send(new TextMessage(SignalingCodec.iceCandidates(names, batch)));
+    } catch (IOException e) {
+      log.debug("Session {}: could not send {} candidates", outbound.getSession().getId(),
+          batch.size(), e);
+    }
+  }
+}
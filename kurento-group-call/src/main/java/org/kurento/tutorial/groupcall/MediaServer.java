@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.KurentoConnectionListener;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * One Kurento Media Server of the pool, together with the load the application has placed on it.
+ * The server is taken out of placement while its connection is down.
+ * <p>
+ * The server keeps a few pipelines created in advance, so that opening a room does not wait for a
+ * round-trip to the media server. The warm pool is refilled in the background as it is drained.
+ *
+ * @since 6.6.2
+ */
+public class MediaServer implements KurentoConnectionListener {
+
+  private static final Logger log = LoggerFactory.getLogger(MediaServer.class);
+
+  private final String id;
+  private final String url;
+  private final int warmPipelines;
+  private final Timer createTimer;
+  private final AtomicInteger pipelines = new AtomicInteger();
+  private final AtomicInteger endpoints = new AtomicInteger();
+  private final Queue<MediaPipeline> warm = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger warming = new AtomicInteger();
+
+  private volatile KurentoClient kurento;
+  private volatile boolean available;
+
+  /**
+   * @param createTimer
+   *          records how long the server takes to create pipelines
+   */
+  public MediaServer(String id, String url, int warmPipelines, Timer createTimer) {
+    this.id = id;
+    this.url = url;
+    this.warmPipelines = warmPipelines;
+    this.createTimer = createTimer;
+  }
+
+  /**
+   * Opens the connection to the server if it is not open yet.
+   *
+   * @return true if the server is connected
+   */
+  public synchronized boolean connect() {
+    if (kurento == null) {
+      try {
+        kurento = KurentoClient.create(url, this);
+        available = true;
+        log.info("KMS {}: connected to {}", id, url);
+        refill();
+      } catch (RuntimeException e) {
+        available = false;
+        log.warn("KMS {}: could not connect to {}: {}", id, url, e.getMessage());
+      }
+    }
+    return kurento != null;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public KurentoClient getKurentoClient() {
+    return kurento;
+  }
+
+  public boolean isAvailable() {
+    return available && kurento != null;
+  }
+
+  public int getPipelines() {
+    return pipelines.get();
+  }
+
+  public int getEndpoints() {
+    return endpoints.get();
+  }
+
+  /**
+   * Placement score of the server: lower is less loaded.
+   *
+   * @param pipelineWeight
+   *          how many endpoints one pipeline weighs
+   */
+  public int getLoad(int pipelineWeight) {
+    return endpoints.get() + pipelineWeight * pipelines.get();
+  }
+
+  public int getWarmPipelines() {
+    return warm.size();
+  }
+
+  /**
+   * Adds the pipelines created in advance that no room has taken yet.
+   */
+  public void collectWarmPipelines(Collection<MediaObject> pipelines) {
+    pipelines.addAll(warm);
+  }
+
+  /**
+   * Hands out a pipeline for a new room, taken from the warm pool when there is one ready.
+   */
+  public MediaPipeline createMediaPipeline() {
+    MediaPipeline pipeline = warm.poll();
+    if (pipeline == null) {
+      log.debug("KMS {}: warm pool empty, creating pipeline", id);
+      final Timer.Context timer = createTimer.time();
+      pipeline = kurento.createMediaPipeline();
+      timer.stop();
+    }
+    pipelines.incrementAndGet();
+    refill();
+    return pipeline;
+  }
+
+  /**
+   * Starts creating pipelines until the warm pool reaches its target size. Does not wait for the
+   * media server.
+   */
+  private void refill() {
+    while (isAvailable()) {
+      final int inFlight = warming.get();
+      if (warm.size() + inFlight >= warmPipelines) {
+        return;
+      }
+      if (!warming.compareAndSet(inFlight, inFlight + 1)) {
+        continue;
+      }
+      kurento.createMediaPipeline(new TimedContinuation<>(createTimer,
+          new Continuation<MediaPipeline>() {
+
+            @Override
+            public void onSuccess(MediaPipeline pipeline) throws Exception {
+              warm.add(pipeline);
+              warming.decrementAndGet();
+            }
+
+            @Override
+            public void onError(Throwable cause) throws Exception {
+              warming.decrementAndGet();
+              log.warn("KMS {}: could not create warm pipeline", id, cause);
+            }
+          }));
+    }
+  }
+
+  public void pipelineReleased(int remainingEndpoints) {
+    pipelines.decrementAndGet();
+    endpoints.addAndGet(-remainingEndpoints);
+  }
+
+  public void endpointCreated() {
+    endpoints.incrementAndGet();
+  }
+
+  public void endpointReleased() {
+    endpoints.decrementAndGet();
+  }
+
+  public void destroy() {
+    MediaPipeline pipeline;
+    while ((pipeline = warm.poll()) != null) {
+      pipeline.release(new LoggingContinuation<Void>(log, "KMS " + id + ": release pipeline"));
+    }
+    if (kurento != null) {
+      kurento.destroy();
+    }
+  }
+
+  @Override
+  public void connected() {
+    available = true;
+  }
+
+  @Override
+  public void connectionFailed() {
+    available = false;
+    log.warn("KMS {}: connection to {} failed, removed from placement", id, url);
+  }
+
+  @Override
+  public void disconnected() {
+    available = false;
+    log.warn("KMS {}: disconnected from {}, removed from placement", id, url);
+  }
+
+  @Override
+  public void reconnected(boolean sameServer) {
+    available = true;
+    if (!sameServer) {
+      // A restarted server has lost every pipeline it hosted
+      pipelines.set(0);
+      endpoints.set(0);
+      warm.clear();
+    }
+    log.info("KMS {}: reconnected to {} (same server: {})", id, url, sameServer);
+    refill();
+  }
+
+  @Override
+  public String toString() {
+    return id + " (" + url + ")";
+  }
+}
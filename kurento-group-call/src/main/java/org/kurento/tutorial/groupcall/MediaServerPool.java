@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Connections to every Kurento Media Server available to the application. New rooms are placed on
+ * the least loaded server that is currently connected; servers that could not be reached are
+ * retried in the background.
+ *
+ * @since 6.6.2
+ */
+public class MediaServerPool {
+
+  private static final Logger log = LoggerFactory.getLogger(MediaServerPool.class);
+
+  private final List<MediaServer> servers;
+  private final int pipelineWeight;
+  private final MetricRegistry metrics;
+  private final Meter placementFailures;
+  private final ScheduledExecutorService reconnector;
+
+  /**
+   * @param urls
+   *          comma separated list of KMS WebSocket URLs
+   * @param pipelineWeight
+   *          how many endpoints one pipeline weighs when scoring servers
+   * @param warmPipelines
+   *          how many pipelines each server keeps created in advance
+   * @param retryIntervalMillis
+   *          how often unreachable servers are retried
+   */
+  public MediaServerPool(String urls, int pipelineWeight, int warmPipelines,
+      long retryIntervalMillis, MetricRegistry metrics) {
+    this.pipelineWeight = pipelineWeight;
+    this.metrics = metrics;
+    this.placementFailures = metrics.meter("kms.placement-failures");
+
+    final Timer createTimer = metrics.timer("kms.create-pipeline");
+    final List<MediaServer> servers = new ArrayList<>();
+    for (String url : urls.split(",")) {
+      if (!url.trim().isEmpty()) {
+        servers.add(register(new MediaServer("kms" + servers.size(), url.trim(),
+            warmPipelines, createTimer)));
+      }
+    }
+    this.servers = Collections.unmodifiableList(servers);
+    connectAll();
+
+    this.reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "kms-reconnect");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.reconnector.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        connectAll();
+      }
+    }, retryIntervalMillis, retryIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private MediaServer register(final MediaServer server) {
+    final String prefix = MetricRegistry.name("kms", server.getId());
+    metrics.register(MetricRegistry.name(prefix, "endpoints"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return server.getEndpoints();
+      }
+    });
+    metrics.register(MetricRegistry.name(prefix, "pipelines"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return server.getPipelines();
+      }
+    });
+    metrics.register(MetricRegistry.name(prefix, "warm-pipelines"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return server.getWarmPipelines();
+      }
+    });
+    metrics.register(MetricRegistry.name(prefix, "available"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return server.isAvailable() ? 1 : 0;
+      }
+    });
+    log.info("KMS {}: registered {}", server.getId(), server.getUrl());
+    return server;
+  }
+
+  private void connectAll() {
+    for (MediaServer server : servers) {
+      server.connect();
+    }
+  }
+
+  /**
+   * Chooses the server that will host a new room.
+   *
+   * @param roomName
+   *          the room being created
+   * @return the least loaded server that is available
+   * @throws KurentoException
+   *           if no server is available
+   */
+  public MediaServer place(String roomName) {
+    MediaServer selected = null;
+    int selectedLoad = Integer.MAX_VALUE;
+    for (MediaServer server : servers) {
+      if (!server.isAvailable()) {
+        continue;
+      }
+      final int load = server.getLoad(pipelineWeight);
+      if (load < selectedLoad) {
+        selected = server;
+        selectedLoad = load;
+      }
+    }
+
+    if (selected == null) {
+      placementFailures.mark();
+      throw new KurentoException("No media server available for room " + roomName);
+    }
+    metrics.meter(MetricRegistry.name("kms", selected.getId(), "placements")).mark();
+    log.info("Room {} placed on KMS {} (load {})", roomName, selected, selectedLoad);
+    return selected;
+  }
+
+  public List<MediaServer> getServers() {
+    return servers;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    reconnector.shutdown();
+    for (MediaServer server : servers) {
+      server.destroy();
+    }
+  }
+}
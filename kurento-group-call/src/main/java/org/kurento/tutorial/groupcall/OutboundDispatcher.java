@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Keeps one {@link OutboundQueue} per open WebSocket session. Writers run on a fixed pool and
+ * write asynchronously with a send timeout, so a slow client neither holds a thread while its
+ * socket is full nor makes the application grow threads.
+ *
+ * @since 6.6.2
+ */
+public class OutboundDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(OutboundDispatcher.class);
+
+  private final int capacity;
+  private final long sendTimeoutMillis;
+  private final long iceBatchWindowMillis;
+  private final ExecutorService writers;
+  private final ScheduledExecutorService batchTimer;
+  private final ConcurrentMap<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+
+  private final Histogram queueDepth;
+  private final Timer sendLatency;
+  private final Meter overflows;
+
+  /**
+   * @param capacity
+   *          most messages waiting for each session
+   * @param sendTimeoutMillis
+   *          longest a message may take to be written before its session is closed
+   * @param writerThreads
+   *          number of threads writing to the sessions
+   */
+  public OutboundDispatcher(int capacity, long sendTimeoutMillis, int writerThreads,
+      long iceBatchWindowMillis, MetricRegistry metrics) {
+    this.capacity = capacity;
+    this.sendTimeoutMillis = sendTimeoutMillis;
+    this.iceBatchWindowMillis = iceBatchWindowMillis;
+    final AtomicInteger count = new AtomicInteger();
+    this.writers = Executors.newFixedThreadPool(writerThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "outbound-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "outbound-batch");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.queueDepth = metrics.histogram("outbound.queue-depth");
+    this.sendLatency = metrics.timer("outbound.send-latency");
+    this.overflows = metrics.meter("outbound.overflows");
+    metrics.register("outbound.queued", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        int queued = 0;
+        for (OutboundQueue queue : queues.values()) {
+          queued += queue.size();
+        }
+        return queued;
+      }
+    });
+    log.info("Outbound dispatcher started with per-session capacity {}, send timeout {} ms and {} "
+        + "writer threads", capacity, sendTimeoutMillis, writerThreads);
+  }
+
+  /**
+   * Creates the queue for a newly established session.
+   */
+  public OutboundQueue open(WebSocketSession session) {
+    final OutboundQueue queue = new OutboundQueue(session, capacity, sendTimeoutMillis, writers,
+        batchTimer, iceBatchWindowMillis, queueDepth, sendLatency, overflows);
+    queues.put(session.getId(), queue);
+    return queue;
+  }
+
+  public OutboundQueue get(WebSocketSession session) {
+    return queues.get(session.getId());
+  }
+
+  /**
+   * Discards the queue of a session that has been closed.
+   */
+  public void close(WebSocketSession session) {
+    final OutboundQueue queue = queues.remove(session.getId());
+    if (queue != null) {
+      queue.close(null);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    batchTimer.shutdown();
+    writers.shutdown();
+  }
+}
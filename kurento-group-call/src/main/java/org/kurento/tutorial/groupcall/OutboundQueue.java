@@ -0,0 +1,291 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+import org.kurento.client.IceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Messages waiting to be written to one WebSocket session. Senders only enqueue, and a single
+ * writer drains the queue, so a client with a full TCP buffer only delays its own messages. When
+ * the queue overflows the client is too slow to keep up and the session is closed.
+ * <p>
+ * Messages are written asynchronously when the session allows it, so a slow client never holds a
+ * writer thread, and a write that takes longer than the send timeout closes the session. The
+ * writer gives its thread back after each message, or after a few when it has to block, so that
+ * busy sessions take turns with the rest.
+ *
+ * @since 6.6.2
+ */
+public class OutboundQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+  /**
+   * Most messages written in a row by a writer that has to block on the session.
+   */
+  private static final int BLOCKING_BATCH = 8;
+
+  private final WebSocketSession session;
+  private final RemoteEndpoint.Async remote;
+  private final BlockingQueue<Pending> queue;
+  private final Executor writers;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Writer writer = new Writer();
+  private final IceCandidateBatcher candidates;
+
+  private final Histogram queueDepth;
+  private final Timer sendLatency;
+  private final Meter overflows;
+
+  private volatile boolean closed;
+
+  OutboundQueue(WebSocketSession session, int capacity, long sendTimeoutMillis, Executor writers,
+      ScheduledExecutorService batchTimer, long iceBatchWindowMillis, Histogram queueDepth,
+      Timer sendLatency, Meter overflows) {
+    this.session = session;
+    this.remote = asyncRemote(session, sendTimeoutMillis);
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.writers = writers;
+    this.candidates = new IceCandidateBatcher(this, batchTimer, iceBatchWindowMillis);
+    this.queueDepth = queueDepth;
+    this.sendLatency = sendLatency;
+    this.overflows = overflows;
+  }
+
+  /**
+   * The asynchronous side of a standard WebSocket session, or null if the session has none and
+   * has to be written to blocking.
+   */
+  private static RemoteEndpoint.Async asyncRemote(WebSocketSession session,
+      long sendTimeoutMillis) {
+    if (!(session instanceof NativeWebSocketSession)) {
+      return null;
+    }
+    final javax.websocket.Session nativeSession = ((NativeWebSocketSession) session)
+        .getNativeSession(javax.websocket.Session.class);
+    if (nativeSession == null) {
+      return null;
+    }
+    final RemoteEndpoint.Async remote = nativeSession.getAsyncRemote();
+    remote.setSendTimeout(sendTimeoutMillis);
+    return remote;
+  }
+
+  public WebSocketSession getSession() {
+    return session;
+  }
+
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * Queues a message for this session. Never blocks on the network.
+   *
+   * @param message
+   *          the frame to send
+   * @throws IOException
+   *           if the session is closed or its queue is full
+   */
+  public void send(TextMessage message) throws IOException {
+    if (closed) {
+      throw new IOException("Outbound queue closed for session " + session.getId());
+    }
+    if (!queue.offer(new Pending(message))) {
+      overflows.mark();
+      log.warn("Session {}: outbound queue full ({} messages), dropping client", session.getId(),
+          queue.size());
+      close(CloseStatus.SESSION_NOT_RELIABLE);
+      throw new IOException("Outbound queue full for session " + session.getId());
+    }
+    queueDepth.update(queue.size());
+    schedule();
+  }
+
+  /**
+   * Queues a candidate gathered by one of this session's endpoints. Candidates are sent in
+   * batches, as a single {@code iceCandidates} message per flush window.
+   *
+   * @param name
+   *          the participant whose endpoint gathered the candidate
+   * @param candidate
+   *          the gathered candidate
+   */
+  public void sendIceCandidate(String name, IceCandidate candidate) {
+    if (!closed) {
+      candidates.add(name, candidate);
+    }
+  }
+
+  /**
+   * Stops accepting messages and discards the pending ones. If a close status is given, the
+   * session is closed by the writer once it is free: the close is queued behind the message being
+   * written, which takes the send timeout at most, so it never uses the session at the same time
+   * as a send.
+   */
+  void close(CloseStatus status) {
+    closed = true;
+    queue.clear();
+    if (status != null) {
+      final Pending closing = new Pending(status);
+      // Room for it, unless a sender that had not seen the queue closed yet just took it
+      while (!queue.offer(closing)) {
+        queue.clear();
+      }
+      schedule();
+    }
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      writers.execute(writer);
+    }
+  }
+
+  private class Writer implements Runnable {
+
+    @Override
+    public void run() {
+      boolean pending = false;
+      try {
+        pending = writeSome();
+      } finally {
+        if (!pending) {
+          scheduled.set(false);
+          if (!queue.isEmpty()) {
+            schedule();
+          }
+        }
+      }
+    }
+
+    /**
+     * Writes the next messages, up to a batch.
+     *
+     * @return whether an asynchronous write is in flight, which carries on when it completes
+     */
+    private boolean writeSome() {
+      Pending pending;
+      int written = 0;
+      // Once closed, messages are dropped but a queued close is still carried out
+      while (written < BLOCKING_BATCH && (pending = queue.poll()) != null) {
+        if (pending.closeStatus != null) {
+          closeSession(pending.closeStatus);
+        } else if (!closed) {
+          if (remote != null) {
+            return sendAsync(pending);
+          }
+          send(pending);
+          written++;
+        }
+      }
+      return false;
+    }
+
+    private void send(Pending pending) {
+      try {
+        session.sendMessage(pending.message);
+        sendLatency.update(System.nanoTime() - pending.queuedAt, TimeUnit.NANOSECONDS);
+      } catch (IOException | RuntimeException e) {
+        failed(e);
+      }
+    }
+
+    private boolean sendAsync(final Pending pending) {
+      try {
+        remote.sendText(pending.message.getPayload(), new SendHandler() {
+          @Override
+          public void onResult(SendResult result) {
+            if (result.isOK()) {
+              sendLatency.update(System.nanoTime() - pending.queuedAt, TimeUnit.NANOSECONDS);
+            } else {
+              failed(result.getException());
+            }
+            // Back in line with the other sessions
+            writers.execute(writer);
+          }
+        });
+        return true;
+      } catch (RuntimeException e) {
+        failed(e);
+        return false;
+      }
+    }
+
+    /**
+     * Drops the pending messages of a session that could not be written to, and closes it.
+     */
+    private void failed(Throwable cause) {
+      log.debug("Session {}: could not send message, dropping queue", session.getId(), cause);
+      close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    private void closeSession(CloseStatus status) {
+      if (!session.isOpen()) {
+        return;
+      }
+      try {
+        session.close(status);
+      } catch (IOException | RuntimeException e) {
+        log.debug("Session {}: error closing", session.getId(), e);
+      }
+    }
+  }
+
+  /**
+   * A message to write, or the request to close the session once the previous ones are written.
+   */
+  private static class Pending {
+
+    final TextMessage message;
+    final CloseStatus closeStatus;
+    final long queuedAt = System.nanoTime();
+
+    Pending(TextMessage message) {
+      this.message = message;
+      this.closeStatus = null;
+    }
+
+    Pending(CloseStatus closeStatus) {
+      this.message = null;
+      this.closeStatus = closeStatus;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Exposes the application metrics in the Prometheus text format, to be scraped. Gauges are
+ * exported as gauges, counters and meters as counters, and histograms and timers as summaries
+ * with their main quantiles; timers are in seconds. Metric names have their dots and dashes
+ * turned into underscores, so {@code kms.process-offer} is {@code kms_process_offer_seconds}.
+ *
+ * @since 6.6.2
+ */
+@RequestMapping("/prometheus")
+public class PrometheusController {
+
+  private static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+  private static final double SECONDS = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+  private final MetricRegistry metrics;
+
+  public PrometheusController(MetricRegistry metrics) {
+    this.metrics = metrics;
+  }
+
+  @RequestMapping(method = RequestMethod.GET, produces = "text/plain; version=0.0.4")
+  @ResponseBody
+  public String scrape() {
+    final StringBuilder out = new StringBuilder(8192);
+    // getGauges() hands out raw gauges, so they are read through the metrics map instead
+    for (Map.Entry<String, Metric> gauge : new TreeMap<>(metrics.getMetrics()).entrySet()) {
+      if (!(gauge.getValue() instanceof Gauge)) {
+        continue;
+      }
+      final Object value = ((Gauge<?>) gauge.getValue()).getValue();
+      if (value instanceof Number) {
+        final String name = sanitize(gauge.getKey());
+        type(out, name, "gauge");
+        sample(out, name, "", ((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+        final String name = sanitize(gauge.getKey());
+        type(out, name, "gauge");
+        sample(out, name, "", (Boolean) value ? 1 : 0);
+      }
+    }
+    for (Map.Entry<String, Counter> counter : metrics.getCounters().entrySet()) {
+      final String name = sanitize(counter.getKey()) + "_total";
+      type(out, name, "counter");
+      sample(out, name, "", counter.getValue().getCount());
+    }
+    for (Map.Entry<String, Meter> meter : metrics.getMeters().entrySet()) {
+      final String name = sanitize(meter.getKey()) + "_total";
+      type(out, name, "counter");
+      sample(out, name, "", meter.getValue().getCount());
+    }
+    for (Map.Entry<String, Histogram> histogram : metrics.getHistograms().entrySet()) {
+      summary(out, sanitize(histogram.getKey()), histogram.getValue().getSnapshot(),
+          histogram.getValue().getCount(), 1);
+    }
+    for (Map.Entry<String, Timer> timer : metrics.getTimers().entrySet()) {
+      summary(out, sanitize(timer.getKey()) + "_seconds", timer.getValue().getSnapshot(),
+          timer.getValue().getCount(), SECONDS);
+    }
+    return out.toString();
+  }
+
+  private static void summary(StringBuilder out, String name, Snapshot snapshot, long count,
+      double factor) {
+    type(out, name, "summary");
+    for (double quantile : QUANTILES) {
+      sample(out, name, "{quantile=\"" + quantile + "\"}", snapshot.getValue(quantile) * factor);
+    }
+    sample(out, name + "_count", "", count);
+  }
+
+  private static void type(StringBuilder out, String name, String type) {
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name).append(labels).append(' ').append(value).append('\n');
+  }
+
+  static String sanitize(String name) {
+    final String safe = name.replaceAll("[^a-zA-Z0-9_:]", "_");
+    return Character.isDigit(safe.charAt(0)) ? "_" + safe : safe;
+  }
+}
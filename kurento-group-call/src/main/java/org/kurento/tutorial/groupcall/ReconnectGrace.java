@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Keeps participants whose WebSocket dropped in their room for a grace period, so that a client
+ * reconnecting after a network blip resumes its session instead of joining anew. A parked
+ * participant keeps its endpoints, its recording and its name; if it does not come back in time,
+ * it leaves the room as if the connection had just been closed.
+ *
+ * @since 6.6.2
+ */
+public class ReconnectGrace {
+
+  private static final Logger log = LoggerFactory.getLogger(ReconnectGrace.class);
+
+  private final long graceMillis;
+  private final ScheduledExecutorService timer;
+
+  // The expiry of each parked participant; whoever removes the entry decides its fate
+  private final ConcurrentMap<UserSession, Runnable> parked = new ConcurrentHashMap<>();
+
+  private final Meter parkings;
+  private final Meter resumes;
+  private final Meter expiries;
+
+  /**
+   * @param graceMillis
+   *          how long a participant may stay disconnected; zero to leave the room right away
+   */
+  public ReconnectGrace(long graceMillis, MetricRegistry metrics) {
+    this.graceMillis = graceMillis;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "reconnect-grace");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.parkings = metrics.meter("sessions.parked");
+    this.resumes = metrics.meter("sessions.resumed");
+    this.expiries = metrics.meter("sessions.expired");
+    metrics.register("sessions.disconnected", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return parked.size();
+      }
+    });
+    log.info("Disconnected participants are kept for {} ms", graceMillis);
+  }
+
+  public long getGraceMillis() {
+    return graceMillis;
+  }
+
+  /**
+   * Parks a participant whose connection dropped.
+   *
+   * @param expiry
+   *          run once the grace period is over, unless the participant was reclaimed before
+   */
+  public void park(final UserSession user, final Runnable expiry) {
+    if (graceMillis <= 0) {
+      expiry.run();
+      return;
+    }
+    parkings.mark();
+    parked.put(user, expiry);
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (parked.remove(user, expiry)) {
+          expiries.mark();
+          log.info("USER {}: did not come back to room {} in {} ms", user.getName(),
+              user.getRoomName(), graceMillis);
+          expiry.run();
+        }
+      }
+    }, graceMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Takes a participant back from the grace period.
+   *
+   * @return whether the participant was parked; if not, its expiry may already be running
+   */
+  public boolean reclaim(UserSession user) {
+    if (parked.remove(user) == null) {
+      return false;
+    }
+    resumes.mark();
+    return true;
+  }
+
+  public boolean isParked(UserSession user) {
+    return parked.containsKey(user);
+  }
+
+  /**
+   * Runs a task once the grace period is over, or right away if there is none.
+   *
+   * @return the pending task, or null if it already ran
+   */
+  public Future<?> later(Runnable task) {
+    if (graceMillis <= 0) {
+      task.run();
+      return null;
+    }
+    return timer.schedule(task, graceMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    timer.shutdown();
+  }
+}
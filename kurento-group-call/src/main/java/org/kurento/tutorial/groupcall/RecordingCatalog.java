@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Catalog of every recording made, kept in the application database. Rows are written as
+ * recorders start and stop and as their conversion progresses, so finding recordings never
+ * requires scanning the storage. Lookups by room, user and time are served by indexes (see
+ * {@code schema.sql}).
+ * <p>
+ * Recordings the {@link RecordingStorage} evicts stay in the catalog as {@link Status#EVICTED}.
+ * Catalog failures are logged and never interrupt a recording.
+ *
+ * @since 6.6.2
+ */
+public class RecordingCatalog implements RecordingStorage.EvictionListener {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingCatalog.class);
+
+  private static final String COLUMNS =
+      "id, path, room, user_name, teacher, started_at, ended_at, duration_ms, size_bytes, status";
+
+  /**
+   * Where a recording is in its life.
+   */
+  public enum Status {
+    RECORDING, QUEUED, TRANSCODING, READY, FAILED, EVICTED
+  }
+
+  private final JdbcTemplate jdbc;
+  private final RowMapper<Recording> mapper;
+
+  public RecordingCatalog(JdbcTemplate jdbc, final RecordingStorage storage) {
+    this.jdbc = jdbc;
+    this.mapper = new RowMapper<Recording>() {
+      @Override
+      public Recording mapRow(ResultSet rs, int rowNum) throws SQLException {
+        final Recording recording = new Recording();
+        recording.id = rs.getLong("id");
+        recording.path = rs.getString("path");
+        recording.room = rs.getString("room");
+        recording.user = rs.getString("user_name");
+        recording.teacher = rs.getBoolean("teacher");
+        recording.startedAt = rs.getTimestamp("started_at");
+        recording.endedAt = rs.getTimestamp("ended_at");
+        recording.durationMillis = (Long) rs.getObject("duration_ms");
+        recording.sizeBytes = (Long) rs.getObject("size_bytes");
+        recording.status = Status.valueOf(rs.getString("status"));
+        recording.playlist = recording.status == Status.READY
+            ? storage.toUrl(recording.path, ".m3u8") : null;
+        return recording;
+      }
+    };
+    storage.setEvictionListener(this);
+  }
+
+  public void recordingStarted(String uri, String roomName, String userName, boolean teacher,
+      Date startedAt) {
+    try {
+      jdbc.update("INSERT INTO recording (path, room, user_name, teacher, started_at, status) "
+          + "VALUES (?, ?, ?, ?, ?, ?)", RecordingStorage.toPath(uri), roomName, userName, teacher,
+          new Timestamp(startedAt.getTime()), Status.RECORDING.name());
+    } catch (DataAccessException e) {
+      log.warn("Could not catalog recording {} of {} in room {}", uri, userName, roomName, e);
+    }
+  }
+
+  public void recordingStopped(String uri, Date endedAt, long sizeBytes) {
+    try {
+      jdbc.update("UPDATE recording SET ended_at = ?, "
+          + "duration_ms = DATEDIFF('MILLISECOND', started_at, ?), size_bytes = ?, status = ? "
+          + "WHERE path = ?", new Timestamp(endedAt.getTime()), new Timestamp(endedAt.getTime()),
+          sizeBytes, Status.QUEUED.name(), RecordingStorage.toPath(uri));
+    } catch (DataAccessException e) {
+      log.warn("Could not catalog the end of recording {}", uri, e);
+    }
+  }
+
+  /**
+   * Changes the status of a recording, unless it was evicted meanwhile.
+   *
+   * @param path
+   *          path of the recording without extension
+   */
+  public void statusChanged(String path, Status status) {
+    try {
+      jdbc.update("UPDATE recording SET status = ? WHERE path = ? AND status <> ?",
+          status.name(), path, Status.EVICTED.name());
+    } catch (DataAccessException e) {
+      log.warn("Could not catalog status {} of recording {}", status, path, e);
+    }
+  }
+
+  @Override
+  public void recordingsEvicted(Collection<String> paths) {
+    final List<Object[]> args = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      args.add(new Object[] { Status.EVICTED.name(), path });
+    }
+    try {
+      jdbc.batchUpdate("UPDATE recording SET status = ? WHERE path = ?", args);
+    } catch (DataAccessException e) {
+      log.warn("Could not catalog the eviction of {} recordings", paths.size(), e);
+    }
+  }
+
+  public Recording get(long id) {
+    final List<Recording> found = jdbc.query(
+        "SELECT " + COLUMNS + " FROM recording WHERE id = ?", mapper, id);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * Recordings matching every given criterion, newest first. Recordings that started at the same
+   * time are ordered by id, so that a page can resume exactly after the last recording of the
+   * previous one.
+   *
+   * @param roomName
+   *          the room, or null for any
+   * @param userName
+   *          the user, or null for any
+   * @param from
+   *          earliest start, inclusive, or null
+   * @param to
+   *          latest start, exclusive, or null; pass the start of the last recording of a page,
+   *          along with its id, to get the next one
+   * @param toId
+   *          id of the last recording of the previous page, or null; recordings that started at
+   *          {@code to} with a lower id are included
+   * @param limit
+   *          maximum number of recordings returned
+   */
+  public List<Recording> find(String roomName, String userName, Date from, Date to, Long toId,
+      int limit) {
+    final StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM recording");
+    sql.append(" WHERE 1=1");
+    final List<Object> args = new ArrayList<>();
+    if (roomName != null) {
+      sql.append(" AND room = ?");
+      args.add(roomName);
+    }
+    if (userName != null) {
+      sql.append(" AND user_name = ?");
+      args.add(userName);
+    }
+    if (from != null) {
+      sql.append(" AND started_at >= ?");
+      args.add(new Timestamp(from.getTime()));
+    }
+    if (to != null && toId != null) {
+      sql.append(" AND (started_at < ? OR (started_at = ? AND id < ?))");
+      args.add(new Timestamp(to.getTime()));
+      args.add(new Timestamp(to.getTime()));
+      args.add(toId);
+    } else if (to != null) {
+      sql.append(" AND started_at < ?");
+      args.add(new Timestamp(to.getTime()));
+    }
+    sql.append(" ORDER BY started_at DESC, id DESC LIMIT ?");
+    args.add(limit);
+    return jdbc.query(sql.toString(), mapper, args.toArray());
+  }
+
+  /**
+   * One row of the catalog.
+   */
+  public static class Recording {
+
+    private long id;
+    private String path;
+    private String room;
+    private String user;
+    private boolean teacher;
+    private Date startedAt;
+    private Date endedAt;
+    private Long durationMillis;
+    private Long sizeBytes;
+    private Status status;
+    private String playlist;
+
+    public long getId() {
+      return id;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    public String getRoom() {
+      return room;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public boolean isTeacher() {
+      return teacher;
+    }
+
+    public Date getStartedAt() {
+      return startedAt;
+    }
+
+    public Date getEndedAt() {
+      return endedAt;
+    }
+
+    public Long getDurationMillis() {
+      return durationMillis;
+    }
+
+    public Long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    /**
+     * URL of the HLS playlist, once the recording is ready.
+     */
+    public String getPlaylist() {
+      return playlist;
+    }
+  }
+}
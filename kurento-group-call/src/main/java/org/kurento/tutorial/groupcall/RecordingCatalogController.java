@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Date;
+import java.util.List;
+
+import org.kurento.tutorial.groupcall.RecordingCatalog.Recording;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Query API over the {@link RecordingCatalog}. Times are ISO-8601, such as
+ * {@code 2016-10-18T09:00:00Z}.
+ *
+ * @since 6.6.2
+ */
+@RequestMapping("/api/recordings")
+public class RecordingCatalogController {
+
+  private static final int MAX_LIMIT = 1000;
+
+  @Autowired
+  private RecordingCatalog catalog;
+
+  /**
+   * Recordings matching the given filters, newest first. To page, repeat the query with
+   * {@code to} and {@code toId} set to the start and id of the last recording received.
+   */
+  @RequestMapping(method = RequestMethod.GET)
+  @ResponseBody
+  public List<Recording> find(@RequestParam(value = "room", required = false) String room,
+      @RequestParam(value = "user", required = false) String user,
+      @RequestParam(value = "from", required = false)
+      @DateTimeFormat(iso = ISO.DATE_TIME) Date from,
+      @RequestParam(value = "to", required = false)
+      @DateTimeFormat(iso = ISO.DATE_TIME) Date to,
+      @RequestParam(value = "toId", required = false) Long toId,
+      @RequestParam(value = "limit", defaultValue = "100") int limit) {
+    return catalog.find(room, user, from, to, toId, Math.max(1, Math.min(limit, MAX_LIMIT)));
+  }
+
+  @RequestMapping(value = "/{id}", method = RequestMethod.GET)
+  @ResponseBody
+  public ResponseEntity<Recording> get(@PathVariable("id") long id) {
+    final Recording recording = catalog.get(id);
+    return recording != null ? new ResponseEntity<>(recording, HttpStatus.OK)
+        : new ResponseEntity<Recording>(HttpStatus.NOT_FOUND);
+  }
+}
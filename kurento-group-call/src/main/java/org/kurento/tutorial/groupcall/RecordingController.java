@@ -0,0 +1,282 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Serves the HLS renditions and MP4 downloads of the recordings, straight from the recording
+ * storage. Media files are handed to the container's sendfile support when it has one, and are
+ * otherwise copied with {@link FileChannel#transferTo}, so their bytes never go through the heap.
+ * Byte ranges, ETag and Last-Modified validation are supported.
+ * <p>
+ * Playlists are small and requested by every viewer, so the most recent ones are kept in memory
+ * and only re-read when the file on disk changes.
+ *
+ * @since 6.6.2
+ */
+@RequestMapping("/recordings")
+public class RecordingController {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingController.class);
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+  @Autowired
+  private RecordingStorage storage;
+
+  private final Map<String, Playlist> playlists;
+  private final Meter sendfileHits;
+  private final Meter playlistHits;
+  private final Meter playlistMisses;
+
+  /**
+   * @param playlistCacheSize
+   *          number of playlists kept in memory
+   */
+  public RecordingController(final int playlistCacheSize, MetricRegistry metrics) {
+    this.playlists = new LinkedHashMap<String, Playlist>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Playlist> eldest) {
+        return size() > playlistCacheSize;
+      }
+    };
+    this.sendfileHits = metrics.meter("recordings.sendfile");
+    this.playlistHits = metrics.meter("recordings.playlist-cache.hits");
+    this.playlistMisses = metrics.meter("recordings.playlist-cache.misses");
+  }
+
+  @RequestMapping(value = "/**", method = { RequestMethod.GET, RequestMethod.HEAD })
+  public void serve(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    final File file = resolve(
+        (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE));
+    final String type = file != null ? contentType(file.getName()) : null;
+    if (type == null || !file.isFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    final String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+        + "\"";
+
+    response.setContentType(type);
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Accept-Ranges", "bytes");
+
+    if (notModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (file.getName().endsWith(".m3u8")) {
+      servePlaylist(request, response, file, length, lastModified);
+    } else {
+      response.setHeader("Cache-Control", IMMUTABLE);
+      serveMedia(request, response, file, length, etag);
+    }
+  }
+
+  /**
+   * Maps a request path to a file of the storage, refusing anything outside of it.
+   */
+  private File resolve(String requestPath) throws IOException {
+    if (requestPath == null) {
+      return null;
+    }
+    final Path root = storage.getRoot().toPath().toRealPath();
+    final Path path = root.resolve(requestPath.replaceFirst("^/?recordings/?", "")).normalize();
+    return path.startsWith(root) ? path.toFile() : null;
+  }
+
+  private static String contentType(String name) {
+    if (name.endsWith(".m3u8")) {
+      return "application/vnd.apple.mpegurl";
+    } else if (name.endsWith(".ts")) {
+      return "video/mp2t";
+    } else if (name.endsWith(".mp4")) {
+      return "video/mp4";
+    }
+    return null;
+  }
+
+  private static boolean notModified(HttpServletRequest request, String etag,
+      long lastModified) {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+    }
+    final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  private void servePlaylist(HttpServletRequest request, HttpServletResponse response, File file,
+      long length, long lastModified) throws IOException {
+    final String key = file.getPath();
+    Playlist playlist;
+    synchronized (playlists) {
+      playlist = playlists.get(key);
+    }
+    if (playlist != null && playlist.length == length && playlist.lastModified == lastModified) {
+      playlistHits.mark();
+    } else {
+      playlistMisses.mark();
+      playlist = new Playlist(Files.readAllBytes(file.toPath()), length, lastModified);
+      synchronized (playlists) {
+        playlists.put(key, playlist);
+      }
+    }
+
+    // A playlist still being written by the transcoder must be fetched again by players
+    response.setHeader("Cache-Control",
+        RecordingStorage.isComplete(file) ? "public, max-age=3600" : "no-cache");
+    response.setContentLength(playlist.content.length);
+    if (!"HEAD".equals(request.getMethod())) {
+      try (OutputStream out = response.getOutputStream()) {
+        out.write(playlist.content);
+      }
+    }
+  }
+
+  private void serveMedia(HttpServletRequest request, HttpServletResponse response, File file,
+      long length, String etag) throws IOException {
+    long start = 0;
+    long end = length - 1;
+
+    final String range = request.getHeader("Range");
+    final String ifRange = request.getHeader("If-Range");
+    if (range != null && (ifRange == null || ifRange.equals(etag))) {
+      final long[] bounds = parseRange(range, length);
+      if (bounds == null) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+      }
+    }
+
+    final long count = end - start + 1;
+    response.setHeader("Content-Length", Long.toString(count));
+    if ("HEAD".equals(request.getMethod()) || count == 0) {
+      return;
+    }
+
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      sendfileHits.mark();
+      request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+      request.setAttribute(SENDFILE_START, start);
+      request.setAttribute(SENDFILE_END, end + 1);
+      return;
+    }
+
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream())) {
+      long position = start;
+      while (position <= end) {
+        position += in.transferTo(position, end + 1 - position, out);
+      }
+    } catch (IOException e) {
+      // Players drop connections when seeking
+      log.debug("Transfer of {} interrupted: {}", file, e.getMessage());
+    }
+  }
+
+  /**
+   * Parses a single byte range.
+   *
+   * @return the first and last byte, an empty array if the header is not a single range and must
+   *         be ignored, or null if the range cannot be satisfied
+   */
+  static long[] parseRange(String header, long length) {
+    if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return new long[0];
+    }
+    final String spec = header.substring("bytes=".length()).trim();
+    final int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return new long[0];
+    }
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        final long suffix = Long.parseLong(spec.substring(1));
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end = dash == spec.length() - 1 ? length - 1
+            : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+      }
+      return start > end || start >= length ? null : new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return new long[0];
+    }
+  }
+
+  private static class Playlist {
+
+    final byte[] content;
+    final long length;
+    final long lastModified;
+
+    Playlist(byte[] content, long length, long lastModified) {
+      this.content = content;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Where recordings and their renditions live. Recordings are sharded as
+ * {@code root/yyyy/MM/dd/room/user/HH-mm-ss-SSS}, so no directory grows with the age of the
+ * deployment.
+ * <p>
+ * Free space is checked periodically. Days past the retention period are always removed. When the
+ * free space drops below the configured minimum, the sources of recordings already converted to
+ * HLS are removed first, then whole days starting from the oldest, until there is room again. The
+ * current day is never evicted, as it holds the recordings in progress. Recordings removed
+ * entirely are reported to the {@link EvictionListener}, if any.
+ *
+ * @since 6.6.2
+ */
+public class RecordingStorage {
+
+  private static final Logger log = LoggerFactory.getLogger(RecordingStorage.class);
+
+  /**
+   * Extension of the files written by the media server recorders.
+   */
+  public static final String RECORDING_EXT = ".webm";
+
+  private static final String DAY_PATTERN = "yyyy/MM/dd";
+
+  /**
+   * Told about the recordings that no longer exist in the storage.
+   */
+  public interface EvictionListener {
+
+    /**
+     * @param paths
+     *          paths of the evicted recordings, without extension
+     */
+    void recordingsEvicted(Collection<String> paths);
+  }
+
+  private final File root;
+  private final long minFreeBytes;
+  private final int retentionDays;
+  private final ScheduledExecutorService janitor;
+
+  private final Meter evictedFiles;
+  private final Meter evictedBytes;
+
+  private volatile EvictionListener evictionListener;
+
+  /**
+   * @param root
+   *          directory under which recordings are sharded
+   * @param minFreeBytes
+   *          free space below which recordings are evicted
+   * @param retentionDays
+   *          days a recording is kept, or 0 to keep recordings until space runs low
+   * @param checkIntervalMillis
+   *          how often the free space is checked
+   */
+  public RecordingStorage(String root, long minFreeBytes, int retentionDays,
+      long checkIntervalMillis, MetricRegistry metrics) {
+    this.root = new File(root);
+    this.minFreeBytes = minFreeBytes;
+    this.retentionDays = retentionDays;
+    if (!this.root.isDirectory() && !this.root.mkdirs()) {
+      log.warn("Could not create recording storage {}", this.root);
+    }
+
+    this.evictedFiles = metrics.meter("storage.evicted-files");
+    this.evictedBytes = metrics.meter("storage.evicted-bytes");
+    metrics.register("storage.free-bytes", new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return RecordingStorage.this.root.getUsableSpace();
+      }
+    });
+
+    this.janitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "storage-janitor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.janitor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          enforce();
+        } catch (RuntimeException e) {
+          log.warn("Recording storage check failed", e);
+        }
+      }
+    }, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    log.info("Recordings stored in {}, keeping {} bytes free", this.root, minFreeBytes);
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  public void setEvictionListener(EvictionListener evictionListener) {
+    this.evictionListener = evictionListener;
+  }
+
+  /**
+   * Reserves the location of a new recording and creates its directory.
+   *
+   * @return the URI of the recording without extension, as given to the recorder
+   */
+  public String allocate(String roomName, String userName) {
+    final Date now = new Date();
+    final File dir = new File(new File(new File(root, new SimpleDateFormat(DAY_PATTERN)
+        .format(now)), sanitize(roomName)), sanitize(userName));
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.warn("Could not create recording directory {}", dir);
+    }
+    return "file://" + new File(dir, new SimpleDateFormat("HH-mm-ss-SSS").format(now))
+        .getAbsolutePath();
+  }
+
+  /**
+   * The file system path of a recording URI handed out by {@link #allocate(String, String)}.
+   */
+  public static String toPath(String uri) {
+    return uri.startsWith("file://") ? uri.substring("file://".length()) : uri;
+  }
+
+  /**
+   * Where a recording is served by the {@link RecordingController}, given its path without
+   * extension.
+   */
+  public String toUrl(String path, String extension) {
+    return "/recordings/" + root.toPath().toAbsolutePath().relativize(new File(path).toPath())
+        .toString().replace(File.separatorChar, '/') + extension;
+  }
+
+  /**
+   * Keeps a name usable as a single path element.
+   */
+  static String sanitize(String name) {
+    final String safe = name.replaceAll("[^A-Za-z0-9._-]", "_");
+    return safe.isEmpty() || safe.startsWith(".") ? "_" + safe : safe;
+  }
+
+  /**
+   * Applies the retention period and, if space is short, evicts recordings.
+   */
+  void enforce() {
+    final List<File> days = listDays();
+    final String today = new SimpleDateFormat(DAY_PATTERN).format(new Date());
+
+    if (retentionDays > 0) {
+      final Calendar cutoff = Calendar.getInstance();
+      cutoff.add(Calendar.DAY_OF_MONTH, -retentionDays);
+      final String oldest = new SimpleDateFormat(DAY_PATTERN).format(cutoff.getTime());
+      for (File day : new ArrayList<>(days)) {
+        if (dayOf(day).compareTo(oldest) < 0) {
+          log.info("Removing recordings of {}, past the retention period", dayOf(day));
+          delete(day.toPath());
+          days.remove(day);
+        }
+      }
+    }
+
+    if (hasRoom()) {
+      return;
+    }
+    log.warn("Only {} bytes free in {}, evicting recordings", root.getUsableSpace(), root);
+
+    for (File day : days) {
+      removeConvertedSources(day.toPath());
+      if (hasRoom()) {
+        return;
+      }
+    }
+    for (File day : days) {
+      if (dayOf(day).equals(today)) {
+        break;
+      }
+      log.warn("Evicting recordings of {}", dayOf(day));
+      delete(day.toPath());
+      if (hasRoom()) {
+        return;
+      }
+    }
+    log.warn("Still only {} bytes free in {} after eviction", root.getUsableSpace(), root);
+  }
+
+  private boolean hasRoom() {
+    return root.getUsableSpace() >= minFreeBytes;
+  }
+
+  /**
+   * Day directories, oldest first.
+   */
+  private List<File> listDays() {
+    final List<File> days = new ArrayList<>();
+    for (File year : listDirs(root, "\\d{4}")) {
+      for (File month : listDirs(year, "\\d{2}")) {
+        days.addAll(listDirs(month, "\\d{2}"));
+      }
+    }
+    return days;
+  }
+
+  private static List<File> listDirs(File parent, String pattern) {
+    final File[] children = parent.listFiles();
+    if (children == null) {
+      return new ArrayList<>();
+    }
+    Arrays.sort(children);
+    final List<File> dirs = new ArrayList<>();
+    for (File child : children) {
+      if (child.isDirectory() && child.getName().matches(pattern)) {
+        dirs.add(child);
+      }
+    }
+    return dirs;
+  }
+
+  private String dayOf(File day) {
+    return root.toPath().relativize(day.toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * Removes the recorder output of the recordings whose HLS rendition is complete.
+   */
+  private void removeConvertedSources(Path day) {
+    try {
+      Files.walkFileTree(day, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          final String name = file.getFileName().toString();
+          if (name.endsWith(RECORDING_EXT)) {
+            final String base = name.substring(0, name.length() - RECORDING_EXT.length());
+            if (isComplete(file.resolveSibling(base + ".m3u8").toFile())) {
+              evict(file, attrs.size());
+            }
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      log.warn("Could not scan {} for converted recordings", day, e);
+    }
+  }
+
+  /**
+   * Whether an HLS playlist has been written to the end. ffmpeg writes the playlist as it goes,
+   * and only closes it once the conversion is over.
+   */
+  static boolean isComplete(File playlist) {
+    if (!playlist.isFile()) {
+      return false;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(playlist, "r")) {
+      final int tail = (int) Math.min(in.length(), 64);
+      final byte[] bytes = new byte[tail];
+      in.seek(in.length() - tail);
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.US_ASCII).contains("#EXT-X-ENDLIST");
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void delete(Path dir) {
+    // A recording is known by its source, or by its playlist once the source is gone
+    final Set<String> recordings = new LinkedHashSet<>();
+    try {
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          final String path = file.toAbsolutePath().toString();
+          for (String extension : Arrays.asList(RECORDING_EXT, ".m3u8")) {
+            if (path.endsWith(extension)) {
+              recordings.add(path.substring(0, path.length() - extension.length()));
+            }
+          }
+          evict(file, attrs.size());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+          Files.deleteIfExists(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      log.warn("Could not remove {}", dir, e);
+    }
+    final EvictionListener listener = evictionListener;
+    if (listener != null && !recordings.isEmpty()) {
+      listener.recordingsEvicted(recordings);
+    }
+  }
+
+  private void evict(Path file, long size) throws IOException {
+    if (Files.deleteIfExists(file)) {
+      evictedFiles.mark();
+      evictedBytes.mark(size);
+      log.debug("Evicted {}", file);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    janitor.shutdown();
+  }
+}
@@ -19,24 +19,28 @@ package org.kurento.tutorial.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PreDestroy;
 
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.WebSocketSession;
-
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
+import org.springframework.web.socket.TextMessage;
 
 /**
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -45,20 +49,57 @@ import com.google.gson.JsonPrimitive;
 public class Room implements Closeable {
   private final Logger log = LoggerFactory.getLogger(Room.class);
 
-  private String teacherName;
+  /**
+   * Name under which participants subscribe to the mixed stream of an MCU room. It cannot clash
+   * with a participant, as the join of a user with this name is refused.
+   */
+  public static final String MIXED_STREAM = "#mix";
 
   private final ConcurrentMap<String, UserSession> participants = new ConcurrentHashMap<>();
   private final MediaPipeline pipeline;
+  private final MediaServer server;
+  private final EndpointPool endpoints;
+  private final RoomContext context;
+  private final BandwidthAllocator bandwidth;
   private final String name;
+  private final int lastN;
+
+  // Students that spoke last, most recent first; guarded by the room
+  private final LinkedList<String> speakers = new LinkedList<>();
+
+  private volatile RoomMode mode;
+  private Composite composite;
+
+  // Set once the room is being closed, after which nobody can join it; guarded by the room
+  private boolean closed;
+
+  // Set while the elements of a join or resume are being committed; guarded by the room
+  private boolean committing;
 
   public String getName() {
     return name;
   }
 
-  public Room(String roomName, MediaPipeline pipeline) {
+  public Room(String roomName, RoomMode mode, MediaPipeline pipeline, MediaServer server,
+      RoomContext context) {
     this.name = roomName;
+    this.mode = mode;
     this.pipeline = pipeline;
-    log.info("ROOM {} has been created", roomName);
+    this.server = server;
+    this.context = context;
+    this.bandwidth = context.getBandwidth();
+    this.lastN = context.getLastN();
+    this.endpoints = new EndpointPool(roomName, pipeline, server, context.getMaxIdleEndpoints(),
+        context.getEndpointBuildTimer());
+    this.endpoints.resize(idleEndpointTarget());
+    if (mode == RoomMode.MCU) {
+      this.composite = new Composite.Builder(pipeline).build();
+    }
+    log.info("ROOM {} has been created in {} mode", roomName, mode);
+  }
+
+  public RoomMode getMode() {
+    return mode;
   }
 
   @PreDestroy
@@ -66,137 +107,693 @@ public class Room implements Closeable {
     this.close();
   }
 
-  public UserSession join(String userName, WebSocketSession session) throws IOException {
-    log.info("ROOM {}: adding participant {}", userName, userName);
+  public UserSession join(String userName, OutboundQueue outbound) throws IOException {
+    return join(createParticipant(userName, outbound));
+  }
 
+  /**
+   * A participant of this room that has not joined yet: nobody knows about it until
+   * {@link #join(UserSession)} is called.
+   */
+  public UserSession createParticipant(String userName, OutboundQueue outbound) {
     // TODO: increase the security of setting is teacher
     boolean isTeacherUN = (userName.contains("teacher") || userName.contains("Teacher"));
 
-    final UserSession participant = new UserSession(userName, this.name, session, isTeacherUN, this.pipeline);
-    joinRoom(participant);
+    return new UserSession(userName, this, outbound, isTeacherUN);
+  }
+
+  /**
+   * Adds a participant. The elements the join creates and connects, including those of a switch
+   * to MCU, are sent in one transaction. It is committed without holding the room, and the
+   * participant is only announced and sent its roster once the commit succeeded; meanwhile, the
+   * changes that build on the media graph of the room wait for it.
+   * <p>
+   * A student joining while fewer than N students have spoken counts as one of the last N
+   * speakers, so that small rooms are received in full from the start.
+   *
+   * @return the participant, or null if the room was closed meanwhile
+   * @throws IOException
+   *           if the elements of the participant could not be created
+   */
+  public UserSession join(UserSession participant) throws IOException {
+    log.info("ROOM {}: adding participant {}", name, participant.getName());
+
+    final Transaction tx;
+    synchronized (this) {
+      awaitCommit();
+      if (closed) {
+        log.info("ROOM {}: closed, {} cannot join", name, participant.getName());
+        return null;
+      }
+      tx = pipeline.beginTransaction();
+      // The mode is settled before the newcomer gets its roster, so that it never negotiates
+      // streams that a switch would drop right away
+      adaptMode(participants.size() + 1, tx);
+      if (mode != RoomMode.MCU) {
+        tx.rollback();
+        publish(participant);
+        return participant;
+      }
+      participant.joinMix(composite, tx);
+      committing = true;
+    }
+
+    RuntimeException failure = null;
+    try {
+      tx.commit();
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+
+    synchronized (this) {
+      committing = false;
+      notifyAll();
+      if (failure == null) {
+        if (closed) {
+          log.info("ROOM {}: closed while {} was joining", name, participant.getName());
+          return null;
+        }
+        publish(participant);
+        return participant;
+      }
+    }
+    log.warn("ROOM {}: could not create the elements of {}", name, participant.getName(),
+        failure);
+    try {
+      participant.close();
+    } catch (RuntimeException e) {
+      log.debug("ROOM {}: could not release the elements of {}", name, participant.getName(), e);
+    }
+    throw new IOException("Could not join " + participant.getName() + " to room " + name,
+        failure);
+  }
+
+  /**
+   * Announces a participant whose elements exist to the room, and sends it the roster. A
+   * newcomer has no streams yet, so the pauses this implies release nothing.
+   */
+  private void publish(UserSession participant) throws IOException {
+    if (lastN > 0 && !participant.getIsTeacher() && speakers.size() < lastN) {
+      speakers.addLast(participant.getName());
+    }
+    final Transaction tx = pipeline.beginTransaction();
+    joinRoom(participant, tx);
     participants.put(participant.getName(), participant);
+    pauseInactive(participant, tx);
+    tx.rollback();
     sendParticipantNames(participant);
-    return participant;
+    rebalance();
+    endpoints.resize(idleEndpointTarget());
+  }
+
+  /**
+   * Waits, without holding the room, for the join or resume being committed, if any. Called with
+   * the room held, before touching elements that it may have created or replaced.
+   */
+  private void awaitCommit() throws InterruptedIOException {
+    while (committing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a join to room " + name);
+      }
+    }
+  }
+
+  /**
+   * Marks this room closed if nobody is in it or joining it, so that nobody can join it any
+   * longer.
+   *
+   * @return whether the room was empty and had not been closed yet
+   */
+  public synchronized boolean closeIfEmpty() {
+    if (closed || committing || !participants.isEmpty()) {
+      return false;
+    }
+    closed = true;
+    return true;
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
   }
 
   public void leave(UserSession user) throws IOException {
     log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
-    this.removeParticipant(user);
-    user.close();
+    final Transaction tx = pipeline.beginTransaction();
+    this.removeParticipant(user, tx);
+    user.close(tx);
+    tx.commit(new LoggingContinuation<Void>(log,
+        "ROOM " + name + ": leave of " + user.getName()));
   }
 
-  private Collection<String> joinRoom(UserSession newParticipant) throws IOException {
-    final JsonObject newParticipantMsg = new JsonObject();
-    newParticipantMsg.addProperty("id", "newParticipantArrived");
-    newParticipantMsg.addProperty("name", newParticipant.getName());
-    newParticipantMsg.addProperty("isTeacher", newParticipant.getIsTeacher());
+  /**
+   * Brings back a participant that reconnected within the grace period, once its new connection
+   * is bound. Only its own endpoints are renegotiated: a fresh outgoing endpoint replaces the old
+   * one for everybody receiving it, without any signaling towards them, and its incoming streams
+   * are dropped so that the client subscribes again from the roster it is sent. As with a join,
+   * the swap is committed without holding the room, and the roster is sent once it succeeded.
+   *
+   * @throws IOException
+   *           if the swap could not be committed
+   */
+  public void resume(UserSession user) throws IOException {
+    final WebRtcEndpoint renewed = user.createOutgoing();
+    final Transaction tx;
+    synchronized (this) {
+      awaitCommit();
+      tx = pipeline.beginTransaction();
+      if (participants.get(user.getName()) != user) {
+        log.warn("ROOM {}: {} is no longer a participant, cannot resume", name, user.getName());
+        releaseEndpoint(renewed, tx);
+        tx.commit(new LoggingContinuation<Void>(log,
+            "ROOM " + name + ": release the endpoint renewed for " + user.getName()));
+        return;
+      }
+      log.info("ROOM {}: resuming participant {}", name, user.getName());
+      user.cancelAllVideo(tx);
+      user.renewOutgoing(renewed, tx);
+      for (final UserSession participant : audienceOf(user)) {
+        participant.reconnectVideoFrom(user, tx);
+      }
+      committing = true;
+    }
 
-    final List<String> participantsList = new ArrayList<>(participants.values().size());
-    log.debug("ROOM {}: notifying other participants of new participant {}", name,
-        newParticipant.getName());
+    RuntimeException failure = null;
+    try {
+      tx.commit();
+    } catch (RuntimeException e) {
+      failure = e;
+    }
 
-    for (final UserSession participant : participants.values()) {
-      try {
-        /*if (participant.getIsTeacher() == true) {
-          participant.sendMessage(newParticipantMsg);
+    synchronized (this) {
+      committing = false;
+      notifyAll();
+      if (failure == null) {
+        if (participants.get(user.getName()) == user) {
+          sendParticipantNames(user);
+          rebalance();
         }
-        else if (participant.getIsTeacher() == false && newParticipant.getIsTeacher() == true) {*/
-        participant.sendMessage(newParticipantMsg);
-        //}
-        
-      } catch (final IOException e) {
-        log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
+        return;
       }
-      participantsList.add(participant.getName());
     }
+    throw new IOException("Could not resume " + user.getName() + " in room " + name, failure);
+  }
 
+  private Collection<String> joinRoom(UserSession newParticipant, Transaction tx)
+      throws IOException {
+    // Nobody has the newcomer's tile on screen yet, so it is active for all or for none
+    final boolean paused = !isFeatured(newParticipant);
+    final String newParticipantMsg = SignalingCodec.newParticipantArrived(newParticipant, paused);
 
-    /*
-    newParticipant.setIsTeacher(participantsList.size() <= 0);
-    if (participantsList.size() <= 0) {
-      teacherName = newParticipant.getName();
-    }*/
+    final List<String> participantsList = new ArrayList<>(participants.keySet());
+    log.debug("ROOM {}: notifying other participants of new participant {}", name,
+        newParticipant.getName());
+
+    final List<UserSession> audience = audienceOf(newParticipant);
+    if (paused) {
+      for (final UserSession participant : audience) {
+        participant.pauseVideoFrom(newParticipant.getName(), tx);
+      }
+    }
+    final List<String> unnotifiedParticipants = broadcast(newParticipantMsg, audience);
+    if (!unnotifiedParticipants.isEmpty()) {
+      log.debug("ROOM {}: participants {} could not be notified", name, unnotifiedParticipants);
+    }
 
     return participantsList;
   }
 
-  private void removeParticipant(UserSession user) throws IOException {
+  private synchronized void removeParticipant(UserSession user, Transaction tx)
+      throws IOException {
+    awaitCommit();
     String name = user.getName();
     participants.remove(name);
+    user.leaveMix(tx);
+    final boolean refilled = speakers.remove(name) && fillSpeakers();
 
     log.debug("ROOM {}: notifying all users that {} is leaving the room", this.name, name);
 
-    final List<String> unnotifiedParticipants = new ArrayList<>();
-    final JsonObject participantLeftJson = new JsonObject();
-    participantLeftJson.addProperty("id", "participantLeft");
-    participantLeftJson.addProperty("name", name);
-    //if (user.getIsTeacher() == true) {
+    final String participantLeftMsg = SignalingCodec.participantLeft(name);
+
+    // Only the participants that were receiving the user know about it
+    final List<UserSession> audience = audienceOf(user);
+    for (final UserSession participant : audience) {
+      participant.forget(name, tx);
+    }
+    final List<String> unnotifiedParticipants = broadcast(participantLeftMsg, audience);
+
+    if (!unnotifiedParticipants.isEmpty()) {
+      log.debug("ROOM {}: The users {} could not be notified that {} left the room", this.name,
+          unnotifiedParticipants, name);
+    }
+
+    adaptMode(participants.size(), tx);
+    if (refilled && mode != RoomMode.MCU) {
+      refreshAll(tx);
+    }
+    rebalance();
+    endpoints.resize(idleEndpointTarget());
+  }
+
+  /**
+   * Moves a student to the front of the last N speakers, as reported by its client. When the
+   * student was not among them, the one that spoke least recently leaves the list and every
+   * participant's active set is updated.
+   */
+  public synchronized void speaking(UserSession user) {
+    if (lastN <= 0 || user.getIsTeacher() || participants.get(user.getName()) != user) {
+      return;
+    }
+    final boolean promoted = !speakers.remove(user.getName());
+    speakers.addFirst(user.getName());
+    if (!promoted) {
+      return;
+    }
+    if (speakers.size() > lastN) {
+      log.debug("ROOM {}: {} is no longer among the last {} speakers", name,
+          speakers.removeLast(), lastN);
+    }
+    log.debug("ROOM {}: {} is now among the last {} speakers", name, user.getName(), lastN);
+    if (mode != RoomMode.MCU) {
+      final Transaction tx = pipeline.beginTransaction();
+      if (refreshAll(tx)) {
+        tx.commit(new LoggingContinuation<Void>(log,
+            "ROOM " + name + ": pause streams after " + user.getName() + " spoke"));
+      } else {
+        tx.rollback();
+      }
+      rebalance();
+    }
+  }
+
+  /**
+   * Updates the active set of a participant after its client reported the tiles on screen.
+   *
+   * @param visible
+   *          the participants whose tiles are visible
+   */
+  public synchronized void viewport(UserSession user, Collection<String> visible) {
+    if (participants.get(user.getName()) != user) {
+      return;
+    }
+    user.setVisible(visible);
+    if (mode == RoomMode.MCU) {
+      return;
+    }
+    final Transaction tx = pipeline.beginTransaction();
+    if (refresh(user, tx)) {
+      tx.commit(new LoggingContinuation<Void>(log,
+          "ROOM " + name + ": pause streams off the screen of " + user.getName()));
+    } else {
+      tx.rollback();
+    }
+    rebalance();
+  }
+
+  /**
+   * Adds students to the last N speakers while there is room, as after one of them left.
+   *
+   * @return whether any was added
+   */
+  private boolean fillSpeakers() {
+    boolean added = false;
     for (final UserSession participant : participants.values()) {
+      if (speakers.size() >= lastN) {
+        break;
+      }
+      if (!participant.getIsTeacher() && !speakers.contains(participant.getName())) {
+        speakers.addLast(participant.getName());
+        added = true;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Whether a publisher is in the active set of every participant receiving it: teachers and the
+   * last N speakers are, or everybody when there is no limit.
+   */
+  private boolean isFeatured(UserSession publisher) {
+    return lastN <= 0 || publisher.getIsTeacher() || speakers.contains(publisher.getName());
+  }
+
+  private boolean isActive(UserSession subscriber, UserSession publisher) {
+    return isFeatured(publisher) || subscriber.sees(publisher.getName());
+  }
+
+  /**
+   * Pauses, without telling the client, the publishers outside the active set of a subscriber
+   * that is about to receive a roster carrying the paused flags.
+   */
+  private void pauseInactive(UserSession subscriber, Transaction tx) {
+    for (final UserSession publisher : publishersFor(subscriber)) {
+      if (!isActive(subscriber, publisher)) {
+        subscriber.pauseVideoFrom(publisher.getName(), tx);
+      }
+    }
+  }
+
+  /**
+   * Brings the streams a subscriber receives in line with its active set: the client is told to
+   * drop the publishers that left it, whose endpoints are released as part of the transaction,
+   * and to subscribe to those that entered it.
+   *
+   * @return whether any publisher was paused
+   */
+  private boolean refresh(UserSession subscriber, Transaction tx) {
+    boolean paused = false;
+    for (final UserSession publisher : publishersFor(subscriber)) {
+      final String publisherName = publisher.getName();
       try {
-        log.info("run 1");
-        participant.cancelVideoFrom(name);
-        participant.sendMessage(participantLeftJson);
+        if (isActive(subscriber, publisher)) {
+          if (subscriber.resumeVideoFrom(publisherName)) {
+            subscriber.sendMessage(SignalingCodec.videoResumed(publisherName));
+          }
+        } else if (subscriber.pauseVideoFrom(publisherName, tx)) {
+          paused = true;
+          subscriber.sendMessage(SignalingCodec.videoPaused(publisherName));
+        }
       } catch (final IOException e) {
-        unnotifiedParticipants.add(participant.getName());
+        log.debug("ROOM {}: participant {} could not be notified of the video from {}", name,
+            subscriber.getName(), publisherName);
       }
     }
-    /*}
-    else {
+    return paused;
+  }
+
+  private boolean refreshAll(Transaction tx) {
+    boolean paused = false;
+    for (final UserSession subscriber : participants.values()) {
+      paused |= refresh(subscriber, tx);
+    }
+    return paused;
+  }
+
+  /**
+   * Shares the downlink of every participant across the streams it receives, and caps the uplink
+   * of every publisher to the most any of its subscribers takes from it. Paused streams take no
+   * share. Participants only touch the media server for the limits that changed.
+   */
+  private void rebalance() {
+    if (mode == RoomMode.MCU) {
+      final int mixKbps = bandwidth.single();
+      final int tileKbps = bandwidth.tile(participants.size());
       for (final UserSession participant : participants.values()) {
-        if (participant.getIsTeacher() == true) {
-          try {
-            log.info("run 2");
-            participant.cancelVideoFrom(name);
-            participant.sendMessage(participantLeftJson);
-          } catch (final IOException e) {
-            unnotifiedParticipants.add(participant.getName());
-          }
+        participant.limitVideoFrom(MIXED_STREAM, mixKbps);
+        participant.limitUplink(tileKbps);
+      }
+      return;
+    }
+
+    final Map<String, Integer> uplinks = new HashMap<>();
+    for (final UserSession subscriber : participants.values()) {
+      final Map<String, Integer> shares = bandwidth.split(activePublishersFor(subscriber));
+      for (final Map.Entry<String, Integer> share : shares.entrySet()) {
+        subscriber.limitVideoFrom(share.getKey(), share.getValue());
+        final Integer uplink = uplinks.get(share.getKey());
+        if (uplink == null || uplink < share.getValue()) {
+          uplinks.put(share.getKey(), share.getValue());
         }
       }
-    }*/
-    
+    }
+    for (final UserSession participant : participants.values()) {
+      final Integer uplink = uplinks.get(participant.getName());
+      participant.limitUplink(uplink != null ? uplink : bandwidth.getMaxKbps());
+    }
+  }
 
-    if (!unnotifiedParticipants.isEmpty()) {
-      log.debug("ROOM {}: The users {} could not be notified that {} left the room", this.name,
-          unnotifiedParticipants, name);
+  /**
+   * Moves a mesh room to MCU when it grows past the MCU threshold, and back to mesh when it
+   * shrinks to the mesh threshold. Lecture rooms keep their topology.
+   *
+   * @param size
+   *          the number of participants the room is about to have
+   * @return whether the room switched, in which case the switch was added to the transaction
+   */
+  private boolean adaptMode(int size, Transaction tx) {
+    if (mode == RoomMode.MESH && size >= context.getMcuThreshold()) {
+      log.info("ROOM {}: {} participants, switching to MCU", name, size);
+      switchToMix(tx);
+      return true;
+    } else if (mode == RoomMode.MCU && size <= context.getMeshThreshold()) {
+      log.info("ROOM {}: {} participants, switching to mesh", name, size);
+      switchToMesh(tx);
+      return true;
+    }
+    return false;
+  }
+
+  private void switchToMix(Transaction tx) {
+    composite = new Composite.Builder(pipeline).build(tx);
+    mode = RoomMode.MCU;
+    for (final UserSession participant : participants.values()) {
+      participant.cancelAllVideo(tx);
+      participant.joinMix(composite, tx);
     }
+    notifyMode(tx);
+  }
 
+  private void switchToMesh(Transaction tx) {
+    mode = RoomMode.MESH;
+    for (final UserSession participant : participants.values()) {
+      participant.leaveMix(tx);
+    }
+    composite.release(tx);
+    composite = null;
+    notifyMode(tx);
+  }
+
+  /**
+   * Tells every participant the new mode together with the streams to subscribe to, so that
+   * clients drop their current subscriptions and negotiate the new ones. Active sets are computed
+   * anew, as no individual stream survives a switch.
+   */
+  private void notifyMode(Transaction tx) {
+    for (final UserSession participant : participants.values()) {
+      participant.clearPausedVideo();
+      if (mode != RoomMode.MCU) {
+        pauseInactive(participant, tx);
+      }
+      try {
+        participant.sendMessage(SignalingCodec.roomMode(mode, publishersFor(participant),
+            participant.getPausedVideo()));
+      } catch (final IOException e) {
+        log.debug("ROOM {}: participant {} could not be notified of the mode change", name,
+            participant.getName());
+      }
+    }
   }
 
   public void sendParticipantNames(UserSession user) throws IOException {
 
-    final JsonArray participantsArray = new JsonArray();
+    final List<UserSession> roster = publishersFor(user);
     boolean teacherInRoom = false;
-    //if (user.getIsTeacher() == true) {
-    teacherInRoom = true;
     for (final UserSession participant : this.getParticipants()) {
       if (!participant.equals(user)) {
-        final JsonObject participantObj = new JsonObject();
-        participantObj.addProperty("name", participant.getName());
-        participantObj.addProperty("isTeacher", participant.getIsTeacher());
-        participantsArray.add(participantObj);
-      }
-    }
-    /*}
-    else {
-      for (final UserSession participant : this.getParticipants()) {
-        if (participant.getIsTeacher() == true){
-          final JsonObject participantObj = new JsonObject();
-          participantObj.addProperty("name", participant.getName());
-          participantObj.addProperty("isTeacher", participant.getIsTeacher());
-          participantsArray.add(participantObj);
-        }
+        teacherInRoom |= participant.getIsTeacher();
       }
-    }*/
+    }
 
-    final JsonObject existingParticipantsMsg = new JsonObject();
-    existingParticipantsMsg.addProperty("id", "existingParticipants");
-    existingParticipantsMsg.addProperty("selfIsTeacher", user.getIsTeacher());
-    existingParticipantsMsg.addProperty("teacherInRoom", teacherInRoom);
-    existingParticipantsMsg.add("data", participantsArray);
     log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(),
-        participantsArray.size());
-    user.sendMessage(existingParticipantsMsg);
+        roster.size());
+    user.sendMessage(SignalingCodec.existingParticipants(mode, user.getIsTeacher(), teacherInRoom,
+        roster, user.getPausedVideo(), user.getResumeToken()));
+  }
+
+  /**
+   * Whether a participant receives the media of another one. In a mesh everybody receives
+   * everybody else; in a lecture students only receive teachers, while teachers receive everybody.
+   * In MCU mode nobody receives individual streams, only the mixed one.
+   *
+   * @param subscriber
+   *          the participant that would receive the media
+   * @param publisher
+   *          the participant that sends it
+   */
+  public boolean receives(UserSession subscriber, UserSession publisher) {
+    if (subscriber.equals(publisher)) {
+      return false;
+    }
+    switch (mode) {
+      case LECTURE:
+        return subscriber.getIsTeacher() || publisher.getIsTeacher();
+      case MCU:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * The participants whose media a subscriber receives.
+   */
+  private List<UserSession> publishersFor(UserSession subscriber) {
+    final List<UserSession> publishers = new ArrayList<>();
+    for (final UserSession participant : participants.values()) {
+      if (receives(subscriber, participant)) {
+        publishers.add(participant);
+      }
+    }
+    return publishers;
+  }
+
+  /**
+   * The participants whose media a subscriber receives and that are in its active set.
+   */
+  private List<UserSession> activePublishersFor(UserSession subscriber) {
+    final List<UserSession> publishers = publishersFor(subscriber);
+    final Iterator<UserSession> it = publishers.iterator();
+    while (it.hasNext()) {
+      if (subscriber.getPausedVideo().contains(it.next().getName())) {
+        it.remove();
+      }
+    }
+    return publishers;
+  }
+
+  /**
+   * The participants that receive the media of a publisher.
+   */
+  private List<UserSession> audienceOf(UserSession publisher) {
+    final List<UserSession> audience = new ArrayList<>();
+    for (final UserSession participant : participants.values()) {
+      if (receives(participant, publisher)) {
+        audience.add(participant);
+      }
+    }
+    return audience;
+  }
+
+  /**
+   * Idle endpoints needed to let one more participant in without building any: an outgoing
+   * endpoint, plus one endpoint for each stream the newcomer receives and for each participant
+   * receiving the newcomer. In a mesh of N that is 2N+1, or fewer when the newcomer starts with
+   * only the last N speakers and a teacher; in a lecture a student needs three, and in MCU mode
+   * only the outgoing and the mixed endpoints are needed.
+   */
+  private int idleEndpointTarget() {
+    switch (mode) {
+      case LECTURE:
+        return 3;
+      case MCU:
+        return 2;
+      default:
+        final int received = lastN > 0 ? Math.min(participants.size(), lastN + 1)
+            : participants.size();
+        return participants.size() + received + 1;
+    }
+  }
+
+  /**
+   * Sends the same message to every participant in the room. A single frame is queued for each
+   * recipient; every participant's writer then delivers it independently, so a slow participant
+   * does not delay the rest.
+   *
+   * @param message
+   *          the serialized message to send
+   * @param except
+   *          a participant that must not receive the message, or null
+   * @return the names of the participants that could not be notified
+   */
+  public List<String> broadcast(String message, UserSession except) {
+    final List<UserSession> recipients = new ArrayList<>(participants.values());
+    recipients.remove(except);
+    return broadcast(message, recipients);
+  }
+
+  /**
+   * Sends the same message to the given participants, wrapping it in a single frame.
+   *
+   * @param message
+   *          the serialized message to send
+   * @param recipients
+   *          the participants to notify
+   * @return the names of the participants that could not be notified
+   */
+  public List<String> broadcast(String message, Collection<UserSession> recipients) {
+    final TextMessage frame = new TextMessage(message);
+    log.debug("ROOM {}: broadcasting {}", this.name, frame.getPayload());
+
+    final List<String> unnotifiedParticipants = new ArrayList<>();
+    for (final UserSession participant : recipients) {
+      try {
+        participant.sendMessage(frame);
+      } catch (final IOException e) {
+        unnotifiedParticipants.add(participant.getName());
+      }
+    }
+    return unnotifiedParticipants;
+  }
+
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public MediaServer getMediaServer() {
+    return server;
+  }
+
+  public RoomContext getContext() {
+    return context;
+  }
+
+  public TranscodeService getTranscoder() {
+    return context.getTranscoder();
+  }
+
+  public RecordingStorage getStorage() {
+    return context.getStorage();
+  }
+
+  public RecordingCatalog getCatalog() {
+    return context.getCatalog();
+  }
+
+  /**
+   * Number of live WebRTC endpoints created in this room, including idle ones.
+   */
+  public int getEndpointCount() {
+    return endpoints.getLive();
+  }
+
+  public int getIdleEndpointCount() {
+    return endpoints.getIdle();
+  }
+
+  /**
+   * Provides a WebRTC endpoint in the room's pipeline. Endpoints are built in advance, so this
+   * usually does not wait for the media server.
+   */
+  public WebRtcEndpoint createEndpoint() {
+    return endpoints.take();
+  }
+
+  /**
+   * Adds the release of an endpoint previously obtained from {@link #createEndpoint()} to a
+   * transaction.
+   */
+  public void releaseEndpoint(WebRtcEndpoint endpoint, Transaction tx) {
+    endpoints.release(endpoint, tx);
+  }
+
+  /**
+   * Adds the media elements that this room and its participants hold in the pipeline. Elements
+   * whose creation has not been committed yet are left out.
+   */
+  public synchronized void collectMediaElements(Collection<MediaObject> elements) {
+    endpoints.collectIdle(elements);
+    addCommitted(elements, composite);
+    for (final UserSession user : participants.values()) {
+      user.collectMediaElements(elements);
+    }
+  }
+
+  static void addCommitted(Collection<MediaObject> elements, MediaObject element) {
+    if (element != null && element.isCommited()) {
+      elements.add(element);
+    }
   }
 
   public Collection<UserSession> getParticipants() {
@@ -207,20 +804,24 @@ public class Room implements Closeable {
     return participants.get(name);
   }
 
+  /**
+   * Releases the elements of every participant and then the pipeline, all in one transaction.
+   */
   @Override
   public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    final Transaction tx = pipeline.beginTransaction();
     for (final UserSession user : participants.values()) {
-      try {
-        user.close();
-      } catch (IOException e) {
-        log.debug("ROOM {}: Could not invoke close on participant {}", this.name, user.getName(),
-            e);
-      }
+      user.close(tx);
     }
 
     participants.clear();
 
-    pipeline.release(new Continuation<Void>() {
+    server.pipelineReleased(endpoints.close());
+    pipeline.release(tx);
+    tx.commit(new Continuation<Void>() {
 
       @Override
       public void onSuccess(Void result) throws Exception {
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Settings and services shared by every room and its participants.
+ *
+ * @since 6.6.2
+ */
+public class RoomContext {
+
+  private final int maxIdleEndpoints;
+  private final int mcuThreshold;
+  private final int meshThreshold;
+  private final int lastN;
+  private final BandwidthAllocator bandwidth;
+  private final TranscodeService transcoder;
+  private final RecordingStorage storage;
+  private final RecordingCatalog catalog;
+  private final ReconnectGrace reconnectGrace;
+  private final SignalingExecutor signaling;
+
+  private final Timer endpointBuild;
+  private final Timer processOffer;
+  private final Timer joinToConnected;
+
+  /**
+   * @param maxIdleEndpoints
+   *          most endpoints a room keeps built in advance
+   * @param mcuThreshold
+   *          number of participants at which a mesh room switches to MCU
+   * @param meshThreshold
+   *          number of participants at which an MCU room goes back to mesh; lower than the MCU
+   *          threshold, so a room around the limit does not flip on every join
+   * @param lastN
+   *          number of recent speakers every participant receives besides teachers and the tiles
+   *          on its screen; zero or less to receive everybody
+   */
+  public RoomContext(int maxIdleEndpoints, int mcuThreshold, int meshThreshold, int lastN,
+      BandwidthAllocator bandwidth, TranscodeService transcoder, RecordingStorage storage,
+      RecordingCatalog catalog, ReconnectGrace reconnectGrace, SignalingExecutor signaling,
+      MetricRegistry metrics) {
+    this.maxIdleEndpoints = maxIdleEndpoints;
+    this.mcuThreshold = mcuThreshold;
+    this.meshThreshold = meshThreshold;
+    this.lastN = lastN;
+    this.bandwidth = bandwidth;
+    this.transcoder = transcoder;
+    this.storage = storage;
+    this.catalog = catalog;
+    this.reconnectGrace = reconnectGrace;
+    this.signaling = signaling;
+    this.endpointBuild = metrics.timer("kms.endpoint-build");
+    this.processOffer = metrics.timer("kms.process-offer");
+    this.joinToConnected = metrics.timer("room.join-to-connected");
+  }
+
+  public int getMaxIdleEndpoints() {
+    return maxIdleEndpoints;
+  }
+
+  public int getMcuThreshold() {
+    return mcuThreshold;
+  }
+
+  public int getMeshThreshold() {
+    return meshThreshold;
+  }
+
+  public int getLastN() {
+    return lastN;
+  }
+
+  public BandwidthAllocator getBandwidth() {
+    return bandwidth;
+  }
+
+  public TranscodeService getTranscoder() {
+    return transcoder;
+  }
+
+  public RecordingStorage getStorage() {
+    return storage;
+  }
+
+  public RecordingCatalog getCatalog() {
+    return catalog;
+  }
+
+  public ReconnectGrace getReconnectGrace() {
+    return reconnectGrace;
+  }
+
+  /**
+   * Where work for a participant is queued behind the signaling messages of its session.
+   */
+  public SignalingExecutor getSignaling() {
+    return signaling;
+  }
+
+  /**
+   * Time to build a WebRTC endpoint, or a batch of idle ones in a single transaction.
+   */
+  public Timer getEndpointBuildTimer() {
+    return endpointBuild;
+  }
+
+  /**
+   * Time for the media server to answer an SDP offer, along with wiring the endpoint in the same
+   * transaction.
+   */
+  public Timer getProcessOfferTimer() {
+    return processOffer;
+  }
+
+  /**
+   * Time from joining a room to the outgoing media being connected.
+   */
+  public Timer getJoinToConnectedTimer() {
+    return joinToConnected;
+  }
+}
@@ -17,13 +17,26 @@
 
 package org.kurento.tutorial.groupcall;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-import org.kurento.client.KurentoClient;
+import javax.annotation.PostConstruct;
+
+import org.kurento.commons.exception.KurentoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 
 /**
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -34,9 +47,52 @@ public class RoomManager {
   private final Logger log = LoggerFactory.getLogger(RoomManager.class);
 
   @Autowired
-  private KurentoClient kurento;
+  private MediaServerPool mediaServers;
+
+  @Autowired
+  private RoomContext context;
+
+  @Autowired
+  private MetricRegistry metrics;
 
-  private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+  @Value("${room.default-mode:MESH}")
+  private RoomMode defaultMode;
+
+  /**
+   * Rooms by name. A room is published as a future before its pipeline exists, so concurrent
+   * joiners of a new room wait for the same creation instead of creating a pipeline each.
+   */
+  private final ConcurrentMap<String, Future<Room>> rooms = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  private void registerMetrics() {
+    metrics.register("rooms.active", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return getRooms().size();
+      }
+    });
+    metrics.register("rooms.participants", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        int participants = 0;
+        for (Room room : getRooms()) {
+          participants += room.getParticipants().size();
+        }
+        return participants;
+      }
+    });
+    metrics.register("rooms.endpoints", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        int endpoints = 0;
+        for (Room room : getRooms()) {
+          endpoints += room.getEndpointCount();
+        }
+        return endpoints;
+      }
+    });
+  }
 
   /**
    * Looks for a room in the active room list.
@@ -46,29 +102,122 @@ public class RoomManager {
    * @return the room if it was already created, or a new one if it is the first time this room is
    *         accessed
    */
-  public Room getRoom(String roomName) {
+  public Room getRoom(final String roomName) {
+    return getRoom(roomName, null);
+  }
+
+  /**
+   * Looks for a room in the active room list, creating it in the given mode if it does not exist.
+   * The mode of an existing room is never changed.
+   *
+   * @param roomName
+   *          the name of the room
+   * @param mode
+   *          the mode of the room if it has to be created, or null for the default mode
+   */
+  public Room getRoom(final String roomName, RoomMode mode) {
+    final RoomMode creationMode = mode != null ? mode : defaultMode;
     log.debug("Searching for room {}", roomName);
-    Room room = rooms.get(roomName);
+    Future<Room> room = rooms.get(roomName);
 
     if (room == null) {
-      log.debug("Room {} not existent. Will create now!", roomName);
-      room = new Room(roomName, kurento.createMediaPipeline());
-      rooms.put(roomName, room);
+      final FutureTask<Room> creation = new FutureTask<>(new Callable<Room>() {
+        @Override
+        public Room call() throws Exception {
+          log.debug("Room {} not existent. Will create now!", roomName);
+          final MediaServer server = mediaServers.place(roomName);
+          return new Room(roomName, creationMode, server.createMediaPipeline(), server,
+              context);
+        }
+      });
+      room = rooms.putIfAbsent(roomName, creation);
+      if (room == null) {
+        room = creation;
+        creation.run();
+      }
+    }
+
+    try {
+      final Room found = room.get();
+      log.debug("Room {} found!", roomName);
+      return found;
+    } catch (ExecutionException e) {
+      // Let the next joiner try again
+      rooms.remove(roomName, room);
+      throw new KurentoException("Could not create room " + roomName, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KurentoException("Interrupted while creating room " + roomName, e);
     }
-    log.debug("Room {} found!", roomName);
-    return room;
   }
 
   /**
-   * Removes a room from the list of available rooms.
+   * Looks for a room in the active room list, without creating it.
+   *
+   * @param roomName
+   *          the name of the room
+   * @return the room, or null if it does not exist or is still being created
+   */
+  public Room findRoom(String roomName) {
+    final Future<Room> room = rooms.get(roomName);
+    return room != null && room.isDone() ? getQuietly(room) : null;
+  }
+
+  /**
+   * Rooms that have been fully created.
+   */
+  public Collection<Room> getRooms() {
+    final List<Room> created = new ArrayList<>(rooms.size());
+    for (Future<Room> room : rooms.values()) {
+      if (room.isDone()) {
+        try {
+          created.add(room.get());
+        } catch (ExecutionException | InterruptedException e) {
+          // Failed creations are removed by their joiner
+        }
+      }
+    }
+    return created;
+  }
+
+  /**
+   * Removes a room from the list of available rooms and closes it. A room that was already
+   * removed is not closed again.
    *
    * @param room
    *          the room to be removed
+   * @return whether the room was removed by this call
    */
-  public void removeRoom(Room room) {
-    this.rooms.remove(room.getName());
+  public boolean removeRoom(Room room) {
+    final Future<Room> current = rooms.get(room.getName());
+    if (current == null || !current.isDone() || getQuietly(current) != room
+        || !this.rooms.remove(room.getName(), current)) {
+      log.debug("Room {} already removed", room.getName());
+      return false;
+    }
     room.close();
     log.info("Room {} removed and closed", room.getName());
+    return true;
+  }
+
+  /**
+   * Removes a room and closes it if nobody is in it. The room is marked closed first, under its
+   * lock, so that nobody can join it between the check and the removal.
+   *
+   * @param room
+   *          the room to be removed
+   * @return whether the room was removed by this call
+   */
+  public boolean removeRoomIfEmpty(Room room) {
+    return room.closeIfEmpty() && removeRoom(room);
+  }
+
+  private static Room getQuietly(Future<Room> room) {
+    try {
+      return room.get();
+    } catch (ExecutionException | InterruptedException e) {
+      return null;
+    }
   }
 
 }
@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+/**
+ * How media flows between the participants of a room.
+ *
+ * @since 6.6.2
+ */
+public enum RoomMode {
+
+  /**
+   * Every participant receives every other participant. Meant for small seminars.
+   */
+  MESH,
+
+  /**
+   * Students receive only the teachers, and teachers receive everybody.
+   */
+  LECTURE,
+
+  /**
+   * Every participant sends one stream to a mixer and receives one mixed stream back. Large mesh
+   * rooms switch to this mode on their own, and back when they shrink.
+   */
+  MCU;
+
+  /**
+   * Parses the mode requested by a client, falling back to a default for missing or unknown
+   * values. Clients only choose between {@link #MESH} and {@link #LECTURE}: {@link #MCU} is left
+   * to the size thresholds of the server, so asking for it also gets the default.
+   */
+  public static RoomMode parse(String value, RoomMode defaultMode) {
+    if (value != null) {
+      for (RoomMode mode : values()) {
+        if (mode != MCU && mode.name().equalsIgnoreCase(value)) {
+          return mode;
+        }
+      }
+    }
+    return defaultMode;
+  }
+}
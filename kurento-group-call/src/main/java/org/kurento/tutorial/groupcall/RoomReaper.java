@@ -0,0 +1,289 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Closes the rooms nobody uses any more, and looks for media the application lost track of.
+ * <p>
+ * A room is reaped once it has been idle for a whole TTL: empty, as left by participants whose
+ * grace period ran out, or stale, with participants none of whom is connected or parked. Each
+ * sweep also compares what the media servers report with what the rooms hold: elements of a room
+ * pipeline that nobody holds, and pipelines that belong to no room, are orphans. Objects being
+ * created or released look the same for a moment, so an orphan is only logged and counted once
+ * two sweeps in a row have seen it. Orphans are not released, as they may still be in use by
+ * another application sharing the media server.
+ *
+ * @since 6.6.2
+ */
+public class RoomReaper {
+
+  private static final Logger log = LoggerFactory.getLogger(RoomReaper.class);
+
+  private final RoomManager roomManager;
+  private final UserRegistry registry;
+  private final MediaServerPool mediaServers;
+  private final ReconnectGrace grace;
+  private final long ttlMillis;
+  private final ScheduledExecutorService sweeper;
+
+  private final Meter reapedEmpty;
+  private final Meter reapedStale;
+
+  // Only touched by the sweeper thread
+  private Map<Room, Long> idleSince = new HashMap<>();
+  private Map<String, Integer> sightings = new HashMap<>();
+
+  private volatile int orphanElements;
+  private volatile int orphanPipelines;
+
+  /**
+   * @param ttlMillis
+   *          how long a room may stay idle before it is closed
+   * @param intervalMillis
+   *          how often rooms and media servers are checked
+   */
+  public RoomReaper(RoomManager roomManager, UserRegistry registry, MediaServerPool mediaServers,
+      ReconnectGrace grace, long ttlMillis, long intervalMillis, MetricRegistry metrics) {
+    this.roomManager = roomManager;
+    this.registry = registry;
+    this.mediaServers = mediaServers;
+    this.grace = grace;
+    this.ttlMillis = ttlMillis;
+
+    this.reapedEmpty = metrics.meter("rooms.reaped-empty");
+    this.reapedStale = metrics.meter("rooms.reaped-stale");
+    metrics.register("rooms.orphan-elements", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return orphanElements;
+      }
+    });
+    metrics.register("kms.orphan-pipelines", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return orphanPipelines;
+      }
+    });
+
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "room-reaper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          log.warn("Room sweep failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    log.info("Rooms idle for {} ms are closed, checked every {} ms", ttlMillis, intervalMillis);
+  }
+
+  private void sweep() {
+    reapIdle(roomManager.getRooms());
+
+    final Map<String, Integer> seen = new HashMap<>();
+    int elements = 0;
+    for (Room room : roomManager.getRooms()) {
+      elements += checkElements(room, seen);
+    }
+    int pipelines = 0;
+    for (MediaServer server : mediaServers.getServers()) {
+      pipelines += checkPipelines(server, seen);
+    }
+    sightings = seen;
+    orphanElements = elements;
+    orphanPipelines = pipelines;
+  }
+
+  private void reapIdle(Collection<Room> rooms) {
+    final long now = System.currentTimeMillis();
+    final Map<Room, Long> idle = new HashMap<>();
+    for (Room room : rooms) {
+      final boolean empty = room.getParticipants().isEmpty();
+      if (!empty && !isStale(room)) {
+        continue;
+      }
+      final Long since = idleSince.get(room);
+      if (since == null || now - since < ttlMillis) {
+        idle.put(room, since != null ? since : now);
+      } else if (empty) {
+        if (roomManager.removeRoomIfEmpty(room)) {
+          log.info("ROOM {}: empty for {} ms, closed", room.getName(), now - since);
+          reapedEmpty.mark();
+        }
+      } else {
+        reapStale(room, now - since);
+      }
+    }
+    idleSince = idle;
+  }
+
+  /**
+   * Whether none of the participants of a room is connected or waiting to reconnect.
+   */
+  private boolean isStale(Room room) {
+    for (UserSession user : room.getParticipants()) {
+      if (registry.getBySession(user.getSession()) == user || grace.isParked(user)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void reapStale(Room room, long idleMillis) {
+    final List<UserSession> participants = new ArrayList<>(room.getParticipants());
+    log.warn("ROOM {}: nobody connected for {} ms, closing it with {} participants",
+        room.getName(), idleMillis, participants.size());
+    for (UserSession user : participants) {
+      registry.unregister(user);
+      user.clearRecording();
+    }
+    if (roomManager.removeRoom(room)) {
+      reapedStale.mark();
+    }
+  }
+
+  /**
+   * Looks for elements of the pipeline of a room that the room does not hold.
+   *
+   * @return the number of orphans seen in consecutive sweeps
+   */
+  private int checkElements(Room room, Map<String, Integer> seen) {
+    final List<MediaObject> children;
+    try {
+      children = room.getPipeline().getChildren();
+    } catch (KurentoException e) {
+      // Closed meanwhile, or its media server is away
+      log.debug("ROOM {}: could not list pipeline elements", room.getName(), e);
+      return 0;
+    }
+    final List<MediaObject> elements = new ArrayList<>();
+    room.collectMediaElements(elements);
+    final Set<String> held = idsOf(elements);
+    int orphans = 0;
+    for (MediaObject child : children) {
+      final String id = child.getId();
+      if (!held.contains(id) && sighted(id, seen)) {
+        orphans++;
+        if (seen.get(id) == 2) {
+          log.warn("ROOM {}: orphan element {} in pipeline", room.getName(), id);
+        }
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * Looks for pipelines of a media server that belong to no room.
+   *
+   * @return the number of orphans seen in consecutive sweeps
+   */
+  private int checkPipelines(MediaServer server, Map<String, Integer> seen) {
+    if (!server.isAvailable()) {
+      return 0;
+    }
+    final List<MediaPipeline> pipelines;
+    try {
+      pipelines = server.getKurentoClient().getServerManager().getPipelines();
+    } catch (KurentoException e) {
+      log.debug("KMS {}: could not list pipelines", server.getId(), e);
+      return 0;
+    }
+    final List<MediaObject> warm = new ArrayList<>();
+    server.collectWarmPipelines(warm);
+    // Rooms created since the sweep began included
+    for (Room room : roomManager.getRooms()) {
+      warm.add(room.getPipeline());
+    }
+    final Set<String> held = idsOf(warm);
+    int orphans = 0;
+    for (MediaPipeline pipeline : pipelines) {
+      final String id = pipeline.getId();
+      if (!held.contains(id) && sighted(id, seen)) {
+        orphans++;
+        if (seen.get(id) == 2) {
+          log.warn("KMS {}: orphan pipeline {}", server.getId(), id);
+        }
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * Records that an object was found orphaned in this sweep.
+   *
+   * @return whether it was already found in the previous sweep
+   */
+  private boolean sighted(String id, Map<String, Integer> seen) {
+    final Integer before = sightings.get(id);
+    final int count = before != null ? before + 1 : 1;
+    seen.put(id, count);
+    return count > 1;
+  }
+
+  /**
+   * Objects are compared by id, which every proxy holds locally: the proxies listed by the media
+   * server are not guaranteed to be the instances the rooms hold, nor the same from one sweep to
+   * the next.
+   */
+  private static Set<String> idsOf(Collection<MediaObject> objects) {
+    final Set<String> ids = new HashSet<>();
+    for (MediaObject object : objects) {
+      ids.add(object.getId());
+    }
+    return ids;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    sweeper.shutdown();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads client messages and writes the messages of the server. Messages are written field by
+ * field into a buffer kept by each thread, so the only object left behind is the frame payload.
+ *
+ * @since 6.6.2
+ */
+final class SignalingCodec {
+
+  // Buffers that grew past this, e.g. with a huge roster, are not kept for reuse
+  private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+  private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
+  private SignalingCodec() {
+  }
+
+  static ClientMessage read(String payload) throws IOException {
+    return ClientMessage.read(payload);
+  }
+
+  static String receiveVideoAnswer(String name, String sdpAnswer) throws IOException {
+    final JsonWriter writer = begin("receiveVideoAnswer");
+    writer.name("name").value(name);
+    writer.name("sdpAnswer").value(sdpAnswer);
+    return end(writer);
+  }
+
+  /**
+   * @param sdpAnswers
+   *          the answer for each stream of a {@code receiveVideoFromMany}, by sender name
+   */
+  static String receiveVideoAnswers(Map<String, String> sdpAnswers) throws IOException {
+    final JsonWriter writer = begin("receiveVideoAnswers");
+    writer.name("answers").beginArray();
+    for (final Map.Entry<String, String> answer : sdpAnswers.entrySet()) {
+      writer.beginObject();
+      writer.name("name").value(answer.getKey());
+      writer.name("sdpAnswer").value(answer.getValue());
+      writer.endObject();
+    }
+    writer.endArray();
+    return end(writer);
+  }
+
+  /**
+   * @param paused
+   *          whether the recipients must wait for {@code videoResumed} before subscribing
+   */
+  static String newParticipantArrived(UserSession participant, boolean paused)
+      throws IOException {
+    final JsonWriter writer = begin("newParticipantArrived");
+    writer.name("name").value(participant.getName());
+    writer.name("isTeacher").value(participant.getIsTeacher());
+    writer.name("paused").value(paused);
+    return end(writer);
+  }
+
+  /**
+   * Tells a client to drop its subscription to a participant that left its active set.
+   */
+  static String videoPaused(String name) throws IOException {
+    final JsonWriter writer = begin("videoPaused");
+    writer.name("name").value(name);
+    return end(writer);
+  }
+
+  /**
+   * Tells a client to subscribe again to a participant that entered its active set.
+   */
+  static String videoResumed(String name) throws IOException {
+    final JsonWriter writer = begin("videoResumed");
+    writer.name("name").value(name);
+    return end(writer);
+  }
+
+  static String participantLeft(String name) throws IOException {
+    final JsonWriter writer = begin("participantLeft");
+    writer.name("name").value(name);
+    return end(writer);
+  }
+
+  /**
+   * @param roster
+   *          the participants whose media the new participant receives
+   * @param paused
+   *          the names of the roster outside the active set of the new participant
+   * @param resumeToken
+   *          the secret with which the new participant may resume its session after a drop
+   */
+  static String existingParticipants(RoomMode mode, boolean selfIsTeacher, boolean teacherInRoom,
+      Collection<UserSession> roster, Set<String> paused, String resumeToken)
+      throws IOException {
+    final JsonWriter writer = begin("existingParticipants");
+    writer.name("token").value(resumeToken);
+    writer.name("mode").value(mode.name().toLowerCase());
+    writer.name("selfIsTeacher").value(selfIsTeacher);
+    writer.name("teacherInRoom").value(teacherInRoom);
+    writeRoster(writer, roster, paused);
+    return end(writer);
+  }
+
+  /**
+   * @param roster
+   *          the participants whose media the recipient receives in the new mode
+   * @param paused
+   *          the names of the roster outside the active set of the recipient
+   */
+  static String roomMode(RoomMode mode, Collection<UserSession> roster, Set<String> paused)
+      throws IOException {
+    final JsonWriter writer = begin("roomMode");
+    writer.name("mode").value(mode.name().toLowerCase());
+    writeRoster(writer, roster, paused);
+    return end(writer);
+  }
+
+  /**
+   * @param names
+   *          for each candidate, the participant whose endpoint gathered it
+   */
+  static String iceCandidates(List<String> names, List<IceCandidate> candidates)
+      throws IOException {
+    final JsonWriter writer = begin("iceCandidates");
+    writer.name("candidates").beginArray();
+    for (int i = 0; i < candidates.size(); i++) {
+      final IceCandidate candidate = candidates.get(i);
+      writer.beginObject();
+      writer.name("name").value(names.get(i));
+      writer.name("candidate").beginObject();
+      writer.name("candidate").value(candidate.getCandidate());
+      writer.name("sdpMid").value(candidate.getSdpMid());
+      writer.name("sdpMLineIndex").value(candidate.getSdpMLineIndex());
+      writer.endObject();
+      writer.endObject();
+    }
+    writer.endArray();
+    return end(writer);
+  }
+
+  private static void writeRoster(JsonWriter writer, Collection<UserSession> roster,
+      Set<String> paused) throws IOException {
+    writer.name("data").beginArray();
+    for (final UserSession participant : roster) {
+      writer.beginObject();
+      writer.name("name").value(participant.getName());
+      writer.name("isTeacher").value(participant.getIsTeacher());
+      writer.name("paused").value(paused.contains(participant.getName()));
+      writer.endObject();
+    }
+    writer.endArray();
+  }
+
+  private static JsonWriter begin(String id) throws IOException {
+    final JsonWriter writer = new JsonWriter(buffers.get().reset());
+    writer.beginObject();
+    writer.name("id").value(id);
+    return writer;
+  }
+
+  private static String end(JsonWriter writer) throws IOException {
+    writer.endObject();
+    return buffers.get().drain();
+  }
+
+  /**
+   * A writer over a reusable {@link StringBuilder}, without the synchronization of
+   * {@link java.io.StringWriter}.
+   */
+  private static class Buffer extends Writer {
+
+    private StringBuilder chars = new StringBuilder(1024);
+
+    Buffer reset() {
+      chars.setLength(0);
+      return this;
+    }
+
+    String drain() {
+      final String content = chars.toString();
+      if (chars.capacity() > MAX_RETAINED_CHARS) {
+        chars = new StringBuilder(1024);
+      }
+      return content;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      chars.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      chars.append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c) {
+      chars.append((char) c);
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+      chars.append(csq);
+      return this;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
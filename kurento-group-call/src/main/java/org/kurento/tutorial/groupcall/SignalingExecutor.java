@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs signaling work outside the WebSocket container threads. Tasks submitted under the same key
+ * (the id of the WebSocket session they come from) are executed one at a time, in submission
+ * order. Tasks with different keys run concurrently on a fixed pool of worker threads, so a slow
+ * negotiation for one user never delays the messages of another.
+ *
+ * @since 6.6.2
+ */
+public class SignalingExecutor {
+
+  private static final Logger log = LoggerFactory.getLogger(SignalingExecutor.class);
+
+  private final ExecutorService workers;
+  private final ConcurrentMap<String, SerialQueue> queues = new ConcurrentHashMap<>();
+
+  public SignalingExecutor(int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "signaling-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    log.info("Signaling executor started with {} worker threads", threads);
+  }
+
+  /**
+   * Queues a task behind every task previously submitted with the same key.
+   *
+   * @param key
+   *          the ordering key, usually the WebSocket session id
+   * @param task
+   *          the work to run
+   */
+  public void execute(String key, Runnable task) {
+    while (true) {
+      SerialQueue queue = queues.get(key);
+      if (queue == null) {
+        final SerialQueue newQueue = new SerialQueue(key);
+        queue = queues.putIfAbsent(key, newQueue);
+        if (queue == null) {
+          queue = newQueue;
+        }
+      }
+      // A queue retired meanwhile ran all its tasks, so a new one keeps the order
+      if (queue.add(task)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Forgets the queue associated to a key once the tasks already submitted with that key have
+   * run. Until then, tasks submitted with the key still queue behind them.
+   *
+   * @param key
+   *          the ordering key, usually the WebSocket session id
+   */
+  public void release(String key) {
+    final SerialQueue queue = queues.get(key);
+    if (queue != null) {
+      queue.released = true;
+      queue.retireIfIdle();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    workers.shutdown();
+  }
+
+  private class SerialQueue implements Runnable {
+
+    private final String key;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean released;
+    // Set once the queue is out of the map; guarded by the queue
+    private boolean retired;
+
+    SerialQueue(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return whether the task was queued, as opposed to refused by a retired queue
+     */
+    boolean add(Runnable task) {
+      synchronized (this) {
+        if (retired) {
+          return false;
+        }
+        tasks.add(task);
+      }
+      schedule();
+      return true;
+    }
+
+    /**
+     * Leaves the map if the queue was released and has nothing left to run.
+     */
+    void retireIfIdle() {
+      synchronized (this) {
+        if (released && !retired && tasks.isEmpty() && !scheduled.get()) {
+          retired = true;
+          queues.remove(key, this);
+        }
+      }
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        workers.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        final Runnable task = tasks.poll();
+        if (task != null) {
+          task.run();
+        }
+      } catch (Throwable t) {
+        log.error("Signaling task for {} failed", key, t);
+      } finally {
+        // Run one task per turn, so long queues do not starve other sessions
+        scheduled.set(false);
+        if (!tasks.isEmpty()) {
+          schedule();
+        } else {
+          retireIfIdle();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import org.kurento.client.Continuation;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Records how long an asynchronous call to the media server took, then hands the outcome to
+ * another continuation. The time is recorded whether the call succeeds or fails.
+ *
+ * @since 6.6.2
+ */
+class TimedContinuation<T> implements Continuation<T> {
+
+  private final Timer.Context timer;
+  private final Continuation<T> delegate;
+
+  /**
+   * Starts timing. Create it right before issuing the call.
+   */
+  TimedContinuation(Timer timer, Continuation<T> delegate) {
+    this.timer = timer.time();
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void onSuccess(T result) throws Exception {
+    timer.stop();
+    delegate.onSuccess(result);
+  }
+
+  @Override
+  public void onError(Throwable cause) throws Exception {
+    timer.stop();
+    delegate.onError(cause);
+  }
+}
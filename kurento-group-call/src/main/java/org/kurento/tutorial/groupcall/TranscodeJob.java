@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A recording waiting to be converted into the formats served to students. Jobs are persisted in
+ * the transcoding journal as small properties files, so they survive a restart.
+ *
+ * @since 6.6.2
+ */
+public class TranscodeJob implements Comparable<TranscodeJob> {
+
+  /**
+   * Order in which queued jobs are picked. Teacher recordings are the ones students wait for.
+   */
+  public enum Priority {
+    HIGH, NORMAL
+  }
+
+  private final String id;
+  private final String basePath;
+  private final Priority priority;
+  private final boolean mp4;
+  private final long submittedAt;
+
+  /**
+   * @param id
+   *          unique and ordered by submission, used to name the journal entry
+   * @param basePath
+   *          path of the recording without extension; outputs are written next to it
+   * @param mp4
+   *          whether an MP4 download is wanted besides the HLS rendition
+   */
+  public TranscodeJob(String id, String basePath, Priority priority, boolean mp4,
+      long submittedAt) {
+    this.id = id;
+    this.basePath = basePath;
+    this.priority = priority;
+    this.mp4 = mp4;
+    this.submittedAt = submittedAt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getBasePath() {
+    return basePath;
+  }
+
+  public Priority getPriority() {
+    return priority;
+  }
+
+  public boolean isMp4() {
+    return mp4;
+  }
+
+  public long getSubmittedAt() {
+    return submittedAt;
+  }
+
+  @Override
+  public int compareTo(TranscodeJob other) {
+    final int byPriority = priority.compareTo(other.priority);
+    if (byPriority != 0) {
+      return byPriority;
+    }
+    return Long.compare(submittedAt, other.submittedAt);
+  }
+
+  /**
+   * Writes the job to the journal. The entry is written aside and renamed, so a crash never leaves
+   * a half written job behind.
+   */
+  void store(File journal) throws IOException {
+    final Properties props = new Properties();
+    props.setProperty("basePath", basePath);
+    props.setProperty("priority", priority.name());
+    props.setProperty("mp4", Boolean.toString(mp4));
+    props.setProperty("submittedAt", Long.toString(submittedAt));
+
+    final File tmp = new File(journal, id + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, null);
+    }
+    if (!tmp.renameTo(entry(journal))) {
+      throw new IOException("Could not write journal entry " + entry(journal));
+    }
+  }
+
+  void remove(File journal) {
+    entry(journal).delete();
+  }
+
+  File entry(File journal) {
+    return new File(journal, id + ".job");
+  }
+
+  static TranscodeJob load(File file) throws IOException {
+    final Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    final String name = file.getName();
+    return new TranscodeJob(name.substring(0, name.length() - ".job".length()),
+        props.getProperty("basePath"), Priority.valueOf(props.getProperty("priority")),
+        Boolean.parseBoolean(props.getProperty("mp4")),
+        Long.parseLong(props.getProperty("submittedAt")));
+  }
+
+  @Override
+  public String toString() {
+    return id + " (" + basePath + ", " + priority + ")";
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Converts finished recordings with ffmpeg, as laid out by a {@link ConversionPipeline}. A fixed
+ * number of workers takes jobs from a priority queue, so the end of a large class queues its
+ * recordings instead of starting one ffmpeg per participant next to the media server.
+ * <p>
+ * Every job is written to a journal directory when submitted and removed when done. Jobs found in
+ * the journal at startup, including the ones interrupted by a shutdown, are queued again.
+ *
+ * @since 6.6.2
+ */
+public class TranscodeService {
+
+  private static final Logger log = LoggerFactory.getLogger(TranscodeService.class);
+
+  private final File journal;
+  private final ConversionPipeline pipeline;
+  private final RecordingCatalog catalog;
+  private final boolean mp4ByDefault;
+  private final ThreadPoolExecutor workers;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicInteger running = new AtomicInteger();
+
+  private final Meter completed;
+  private final Meter failed;
+  private final Timer duration;
+  private final Timer waiting;
+
+  /**
+   * @param workers
+   *          number of concurrent ffmpeg processes, or 0 for one per available core
+   * @param journalDir
+   *          directory where pending jobs are kept
+   * @param mp4ByDefault
+   *          whether recordings get an MP4 download unless told otherwise
+   */
+  public TranscodeService(int workers, String journalDir, ConversionPipeline pipeline,
+      RecordingCatalog catalog, boolean mp4ByDefault, MetricRegistry metrics) {
+    this.pipeline = pipeline;
+    this.catalog = catalog;
+    this.mp4ByDefault = mp4ByDefault;
+    final int threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+    final AtomicInteger count = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "transcode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        });
+
+    this.journal = new File(journalDir);
+    if (!journal.isDirectory() && !journal.mkdirs()) {
+      log.warn("Could not create transcoding journal {}, jobs will not survive a restart",
+          journal);
+    }
+
+    this.completed = metrics.meter("transcode.completed");
+    this.failed = metrics.meter("transcode.failed");
+    this.duration = metrics.timer("transcode.duration");
+    this.waiting = metrics.timer("transcode.wait");
+    metrics.register("transcode.queued", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return TranscodeService.this.workers.getQueue().size();
+      }
+    });
+    metrics.register("transcode.running", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return running.get();
+      }
+    });
+
+    log.info("Transcoding with {} workers, journal in {}", threads, journal);
+    resume();
+  }
+
+  /**
+   * Queues the conversion of a recording.
+   *
+   * @param recordingUri
+   *          URI of the recording without extension, as given to the recorder
+   */
+  public void submit(String recordingUri, TranscodeJob.Priority priority) {
+    submit(recordingUri, priority, mp4ByDefault);
+  }
+
+  /**
+   * Queues the conversion of a recording.
+   *
+   * @param recordingUri
+   *          URI of the recording without extension, as given to the recorder
+   * @param mp4
+   *          whether to write an MP4 download besides the HLS rendition
+   */
+  public void submit(String recordingUri, TranscodeJob.Priority priority, boolean mp4) {
+    final long now = System.currentTimeMillis();
+    final TranscodeJob job = new TranscodeJob(
+        String.format("%013d-%06d", now, sequence.incrementAndGet()),
+        RecordingStorage.toPath(recordingUri), priority, mp4, now);
+    try {
+      job.store(journal);
+    } catch (IOException e) {
+      log.warn("TRANSCODE {}: not journaled, it will be lost on restart", job.getId(), e);
+    }
+    log.info("TRANSCODE {}: queued", job);
+    workers.execute(new Task(job));
+  }
+
+  public int getQueued() {
+    return workers.getQueue().size();
+  }
+
+  public int getRunning() {
+    return running.get();
+  }
+
+  private void resume() {
+    final File[] stale = journal.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".tmp");
+      }
+    });
+    final File[] entries = journal.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".job");
+      }
+    });
+    if (stale != null) {
+      for (File file : stale) {
+        file.delete();
+      }
+    }
+    if (entries == null) {
+      return;
+    }
+
+    Arrays.sort(entries);
+    for (File entry : entries) {
+      try {
+        final TranscodeJob job = TranscodeJob.load(entry);
+        log.info("TRANSCODE {}: resumed from journal", job);
+        workers.execute(new Task(job));
+      } catch (IOException | RuntimeException e) {
+        log.warn("Discarding unreadable journal entry {}", entry, e);
+        entry.renameTo(new File(journal, entry.getName() + ".failed"));
+      }
+    }
+  }
+
+  /**
+   * Runs the conversion to completion. The ffmpeg output goes to a file, so a chatty process can
+   * never block on a full pipe.
+   */
+  private void transcode(TranscodeJob job, File output)
+      throws IOException, InterruptedException {
+    final List<String> command = pipeline.command(
+        job.getBasePath() + RecordingStorage.RECORDING_EXT, job.getBasePath(), job.isMp4());
+    log.debug("TRANSCODE {}: running {}", job.getId(), command);
+    final Process process = new ProcessBuilder(command).redirectErrorStream(true)
+        .redirectOutput(Redirect.appendTo(output)).start();
+    try {
+      final int exit = process.waitFor();
+      if (exit != 0) {
+        throw new IOException("ffmpeg exited with " + exit + ", see " + output);
+      }
+    } finally {
+      process.destroy();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    // Interrupted jobs stay in the journal and are resumed on the next start
+    workers.shutdownNow();
+  }
+
+  private class Task implements Runnable, Comparable<Task> {
+
+    private final TranscodeJob job;
+
+    Task(TranscodeJob job) {
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      waiting.update(System.currentTimeMillis() - job.getSubmittedAt(), TimeUnit.MILLISECONDS);
+      running.incrementAndGet();
+      catalog.statusChanged(job.getBasePath(), RecordingCatalog.Status.TRANSCODING);
+      final File output = new File(journal, job.getId() + ".log");
+      final Timer.Context timer = duration.time();
+      try {
+        transcode(job, output);
+        job.remove(journal);
+        output.delete();
+        completed.mark();
+        catalog.statusChanged(job.getBasePath(), RecordingCatalog.Status.READY);
+        log.info("TRANSCODE {}: done", job.getId());
+      } catch (IOException e) {
+        failed.mark();
+        catalog.statusChanged(job.getBasePath(), RecordingCatalog.Status.FAILED);
+        job.entry(journal).renameTo(new File(journal, job.getId() + ".failed"));
+        log.warn("TRANSCODE {}: failed: {}", job.getId(), e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        catalog.statusChanged(job.getBasePath(), RecordingCatalog.Status.QUEUED);
+        log.info("TRANSCODE {}: interrupted, left in the journal", job.getId());
+      } finally {
+        timer.stop();
+        running.decrementAndGet();
+      }
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      return job.compareTo(other.job);
+    }
+  }
+}
@@ -24,9 +24,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
- * 
+ * Map of users registered in the system. Users are keyed by room and name, so the same name can be
+ * used in different rooms, and indexed by the id of their WebSocket session.
+ * <p>
+ * Both indexes are concurrent hash maps, so lookups never lock. Changes lock the registry, so
+ * that each one updates both indexes before the next starts: a registration cannot interleave
+ * with the detach, attach or removal of the same user. A user is published in the session index
+ * only once its name is reserved in the room, and leaves it before the name is released: whoever
+ * finds a user by session also finds it by name. A user whose connection dropped is only found by
+ * name until it resumes the session or its grace period is over.
+ *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
  * @authos Ivan Gracia (izanmail@gmail.com)
@@ -34,40 +41,109 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserRegistry {
 
-  private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+  private static final Logger log = LoggerFactory.getLogger(UserRegistry.class);
 
-  private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
+  private final ConcurrentHashMap<Key, UserSession> usersByName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
 
-  public void register(UserSession user) {
-    usersByName.put(user.getName(), user);
-    log.info("added user: {}", user.getName());
+  /**
+   * Registers a user, unless its name is already taken in its room.
+   *
+   * @return whether the user was registered
+   */
+  public synchronized boolean register(UserSession user) {
+    final Key key = new Key(user.getRoomName(), user.getName());
+    if (usersByName.putIfAbsent(key, user) != null) {
+      log.warn("USER {}: name already taken in room {}", user.getName(), user.getRoomName());
+      return false;
+    }
     usersBySessionId.put(user.getSession().getId(), user);
+    log.info("added user: {}", user.getName());
+    return true;
   }
 
-  public UserSession getByName(String name) {
-    return usersByName.get(name);
+  public UserSession getByName(String roomName, String name) {
+    return usersByName.get(new Key(roomName, name));
   }
 
   public UserSession getBySession(WebSocketSession session) {
     return usersBySessionId.get(session.getId());
   }
 
-  public boolean exists(String name) {
-    return usersByName.keySet().contains(name);
+  public boolean exists(String roomName, String name) {
+    return usersByName.containsKey(new Key(roomName, name));
   }
 
-  public UserSession removeBySession(WebSocketSession session) {
-    if (session != null) {
-      final UserSession user = getBySession(session);
-      if (user != null) {
-        log.info("removed user: {}", user.getName());
-        usersByName.remove(user.getName());
-        usersBySessionId.remove(session.getId());
-        return user;
-      }
+  /**
+   * Drops the session index entry of a user whose connection closed. Its name stays reserved, as
+   * it may resume from another connection.
+   *
+   * @return the user that was using the session, or null
+   */
+  public synchronized UserSession detach(WebSocketSession session) {
+    return usersBySessionId.remove(session.getId());
+  }
+
+  /**
+   * Indexes a registered user under the session it resumed from.
+   */
+  public synchronized void attach(UserSession user) {
+    usersBySessionId.put(user.getSession().getId(), user);
+  }
+
+  /**
+   * Releases the name of a user that was detached and did not come back.
+   */
+  public synchronized void unregister(UserSession user) {
+    usersBySessionId.remove(user.getSession().getId(), user);
+    if (usersByName.remove(new Key(user.getRoomName(), user.getName()), user)) {
+      log.info("removed user: {}", user.getName());
+    }
+  }
+
+  public synchronized UserSession removeBySession(WebSocketSession session) {
+    if (session == null) {
       return null;
     }
-    return null;
+    final UserSession user = usersBySessionId.remove(session.getId());
+    if (user != null) {
+      // Only this user's entry: the name may have been taken again since
+      usersByName.remove(new Key(user.getRoomName(), user.getName()), user);
+      log.info("removed user: {}", user.getName());
+    }
+    return user;
+  }
+
+  /**
+   * A name within a room.
+   */
+  private static final class Key {
+
+    private final String roomName;
+    private final String name;
+    private final int hash;
+
+    Key(String roomName, String name) {
+      this.roomName = roomName;
+      this.name = name;
+      this.hash = 31 * roomName.hashCode() + name.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return hash == other.hash && name.equals(other.name) && roomName.equals(other.roomName);
+    }
   }
 }
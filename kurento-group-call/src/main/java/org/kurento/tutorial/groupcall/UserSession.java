@@ -18,32 +18,45 @@
 package org.kurento.tutorial.groupcall;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.lang.InterruptedException;
-import java.lang.Process;
-import java.lang.Thread;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
+import org.kurento.client.HubPort;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaProfileSpecType;
 import org.kurento.client.MediaState;
 import org.kurento.client.MediaStateChangedEvent;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.client.RecorderEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.client.TFuture;
+import org.kurento.client.Transaction;
+import org.kurento.commons.exception.KurentoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-import com.google.gson.JsonObject;
+import com.codahale.metrics.Timer;
 
 /**
  *
@@ -55,105 +68,125 @@ public class UserSession implements Closeable {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
   private final String name;
-  private final WebSocketSession session;
+  // Replaced when the client reconnects within the grace period
+  private volatile OutboundQueue outbound;
+  private final String resumeToken = UUID.randomUUID().toString();
 
+  private final Room room;
   private final MediaPipeline pipeline;
 
   private final String roomName;
-  private final WebRtcEndpoint outgoingMedia;
+  private volatile WebRtcEndpoint outgoingMedia;
   private final ConcurrentMap<String, WebRtcEndpoint> incomingMedia = new ConcurrentHashMap<>();
+  private volatile HubPort hubPort;
+
+  // Bandwidth given by the room to each incoming stream and to the outgoing one, in kbps
+  private final ConcurrentMap<String, Integer> incomingKbps = new ConcurrentHashMap<>();
+  private volatile int uplinkKbps;
+
+  // Participants outside the active set of this user, whose video it does not receive
+  private final Set<String> paused =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile Set<String> visible = Collections.emptySet();
   private RecorderEndpoint recorderCaller;
 
-  public String preConvertedName;
+  private String recordingUri;
   public boolean pendingConversion;
+  // Stop of the recording after the outgoing media dropped, pending a reconnection
+  private Future<?> pendingStop;
+
+  // Running from the join until the outgoing media first connects
+  private final AtomicReference<Timer.Context> joining = new AtomicReference<>();
 
   private boolean isTeacher;
 
-  // file storage & recording setup
-  private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
-  public static final String RECORDING_PATH = "file:///tmp/recordings/" + df.format(new Date()) + "-";
-  public static final String RECORDING_EXT = ".webm";
 
-  public UserSession(final String name, final String roomName, final WebSocketSession session,
-      boolean isTeacher, final MediaPipeline pipeline) {
+  public UserSession(final String name, final Room room, final OutboundQueue outbound,
+      boolean isTeacher) {
 
-    this.pipeline = pipeline;
+    this.room = room;
+    this.pipeline = room.getPipeline();
     this.name = name;
     this.isTeacher = isTeacher;
-    this.session = session;
-    this.roomName = roomName;
-    this.outgoingMedia = new WebRtcEndpoint.Builder(pipeline).build();
-    this.preConvertedName = "";
+    this.outbound = outbound;
+    this.roomName = room.getName();
+    this.joining.set(room.getContext().getJoinToConnectedTimer().time());
+    this.outgoingMedia = room.createEndpoint();
     this.pendingConversion = false;
+    watchOutgoing(this.outgoingMedia);
+  }
 
-    this.outgoingMedia.setMinVideoRecvBandwidth(2000);
-    this.outgoingMedia.setMinVideoSendBandwidth(2000);
-    this.outgoingMedia.setMaxVideoRecvBandwidth(2000);
-    this.outgoingMedia.setMaxVideoSendBandwidth(2000);
-
-    this.outgoingMedia.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+  private void watchOutgoing(final WebRtcEndpoint endpoint) {
+    endpoint.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
       @Override
       public void onEvent(IceCandidateFoundEvent event) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "iceCandidate");
-        response.addProperty("name", name);
-        response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
+        outbound.sendIceCandidate(name, event.getCandidate());
       }
     });
 
-    this.outgoingMedia.addMediaStateChangedListener(new EventListener<MediaStateChangedEvent>() {
+    endpoint.addMediaStateChangedListener(new EventListener<MediaStateChangedEvent>() {
 
       @Override public void onEvent(MediaStateChangedEvent event) {
+        if (endpoint != outgoingMedia) {
+          // Replaced after a reconnection
+          return;
+        }
         if (event.getNewState() == MediaState.CONNECTED) {
-          // recording code
-          log.info("USER {}: begin recording in room {}", name, roomName);
-          preConvertedName =  name + "-" + roomName;
-          recorderCaller = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + preConvertedName + RECORDING_EXT).build();
-          outgoingMedia.connect(recorderCaller);
-          recorderCaller.record();
-          // END recording code
-          pendingConversion = true;
+          final Timer.Context timer = joining.getAndSet(null);
+          if (timer != null) {
+            log.debug("USER {}: media connected {} ms after joining", name,
+                TimeUnit.NANOSECONDS.toMillis(timer.stop()));
+          }
+          startRecording(endpoint);
         }
         else {
-          log.info("USER {}: END recording in room {}", name, roomName);
-          recorderCaller.stop();
-          recorderCaller.release();
-          // conversion
-          log.info("should run {}", pendingConversion);
-          if (pendingConversion == true) {
-            log.info("Run Conversion");
-            new Thread(new Runnable() {
-              public void run(){
-                 try {
-                  log.info("Running: {}", "ffmpeg -i " + RECORDING_PATH + preConvertedName + RECORDING_EXT + " -strict -2 -q:vscale 0 " + RECORDING_PATH + preConvertedName + ".mp4");
-                  Process proc = Runtime.getRuntime().exec("ffmpeg -i " + RECORDING_PATH + preConvertedName + RECORDING_EXT + " -strict -2 -q:vscale 0 " + RECORDING_PATH + preConvertedName + ".mp4");
-                  proc.waitFor();
-                  log.info("Running: {}", "ffmpeg -i " + RECORDING_PATH + preConvertedName + ".mp4 -profile:v baseline -level 3.0 -s 1280x960 -start_number 0 -hls_time 10 -hls_list_size 0 -strict -2 -f hls " + RECORDING_PATH + preConvertedName +".m3u8");
-                  Runtime.getRuntime().exec("ffmpeg -i " + RECORDING_PATH + preConvertedName + ".mp4 -profile:v baseline -level 3.0 -s 1280x960 -start_number 0 -hls_time 10 -hls_list_size 0 -strict -2 -f hls " + RECORDING_PATH + preConvertedName +".m3u8");
-                }
-                catch (IOException e) {
-                  log.info(e.getMessage());
-                }
-                catch (InterruptedException ie) {
-                  log.info(ie.getMessage());
-                }
-              }
-            }).start();
-          }
-          pendingConversion = false;
+          stopRecordingLater();
         }
       }
     });
   }
 
+  /**
+   * Records the outgoing media, unless a recording survived a reconnection.
+   */
+  private synchronized void startRecording(WebRtcEndpoint endpoint) {
+    if (pendingStop != null) {
+      pendingStop.cancel(false);
+      pendingStop = null;
+    }
+    if (recorderCaller != null) {
+      log.debug("USER {}: recording resumed in room {}", name, roomName);
+      return;
+    }
+    // recording code
+    log.info("USER {}: begin recording in room {}", name, roomName);
+    recordingUri = room.getStorage().allocate(roomName, name);
+    recorderCaller = new RecorderEndpoint.Builder(pipeline,
+        recordingUri + RecordingStorage.RECORDING_EXT).build();
+    endpoint.connect(recorderCaller);
+    recorderCaller.record();
+    room.getCatalog().recordingStarted(recordingUri, roomName, name, isTeacher, new Date());
+    // END recording code
+    pendingConversion = true;
+  }
+
+  /**
+   * Stops the recording once the grace period is over, so that a client reconnecting after a
+   * network blip keeps a single recording.
+   */
+  private synchronized void stopRecordingLater() {
+    if (recorderCaller == null || pendingStop != null) {
+      return;
+    }
+    pendingStop = room.getContext().getReconnectGrace().later(new Runnable() {
+      @Override
+      public void run() {
+        clearRecording();
+      }
+    });
+  }
+
   public WebRtcEndpoint getOutgoingWebRtcPeer() {
     return outgoingMedia;
   }
@@ -171,7 +204,64 @@ public class UserSession implements Closeable {
   }
 
   public WebSocketSession getSession() {
-    return session;
+    return outbound.getSession();
+  }
+
+  /**
+   * Secret given to the client on join, with which it may resume this session from a new
+   * connection.
+   */
+  public String getResumeToken() {
+    return resumeToken;
+  }
+
+  /**
+   * Sends the messages of this user through the connection it resumed the session from.
+   */
+  public void rebind(OutboundQueue outbound) {
+    this.outbound = outbound;
+  }
+
+  /**
+   * Takes the endpoint that replaces the outgoing one of a user that reconnected. Its listeners
+   * are subscribed right away, as they cannot be part of the transaction that swaps it in.
+   */
+  public WebRtcEndpoint createOutgoing() {
+    final WebRtcEndpoint renewed = room.createEndpoint();
+    watchOutgoing(renewed);
+    return renewed;
+  }
+
+  /**
+   * Replaces the outgoing endpoint of a user that reconnected, whose client negotiates its own
+   * stream anew. The fresh endpoint, from {@link #createOutgoing()}, feeds the recording and the
+   * mixer in place of the old one; the participants receiving this user are reconnected with
+   * {@link #reconnectVideoFrom(UserSession, Transaction)}.
+   */
+  public void renewOutgoing(WebRtcEndpoint renewed, Transaction tx) {
+    room.releaseEndpoint(outgoingMedia, tx);
+    outgoingMedia = renewed;
+    uplinkKbps = 0;
+    synchronized (this) {
+      if (recorderCaller != null) {
+        renewed.connect(tx, recorderCaller);
+      }
+    }
+    final HubPort port = hubPort;
+    if (port != null) {
+      renewed.connect(tx, port);
+    }
+  }
+
+  /**
+   * Feeds the stream received from a sender again, after the sender renewed its outgoing
+   * endpoint. Nothing is negotiated with this user's client.
+   */
+  public void reconnectVideoFrom(UserSession sender, Transaction tx) {
+    final WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
+    if (incoming != null) {
+      sender.getOutgoingWebRtcPeer().connect(tx, incoming);
+    }
   }
 
   /**
@@ -183,24 +273,288 @@ public class UserSession implements Closeable {
     return this.roomName;
   }
 
-  public void receiveVideoFrom(UserSession sender, String sdpOffer) throws IOException {
+  public void receiveVideoFrom(final UserSession sender, String sdpOffer) throws IOException {
     log.info("USER {}: connecting with {} in room {}", this.name, sender.getName(), this.roomName);
 
     log.trace("USER {}: SdpOffer for {} is {}", this.name, sender.getName(), sdpOffer);
 
-    final String ipSdpAnswer = this.getEndpointForUser(sender).processOffer(sdpOffer);
-    final JsonObject scParams = new JsonObject();
-    scParams.addProperty("id", "receiveVideoAnswer");
-    scParams.addProperty("name", sender.getName());
-    scParams.addProperty("sdpAnswer", ipSdpAnswer);
+    if (!sender.getName().equals(name) && !room.receives(this, sender)) {
+      log.warn("USER {}: not allowed to receive {} in {} mode", this.name, sender.getName(),
+          room.getMode());
+      return;
+    }
+    if (paused.contains(sender.getName())) {
+      log.debug("USER {}: video from {} is paused", this.name, sender.getName());
+      return;
+    }
+
+    final Transaction tx = pipeline.beginTransaction();
+    final WebRtcEndpoint endpoint = this.getEndpointForUser(sender, tx);
+    if (paused.contains(sender.getName())) {
+      if (releasePaused(sender.getName(), endpoint, tx)) {
+        tx.commit(new LoggingContinuation<Void>(log,
+            "USER " + name + ": release the endpoint for paused " + sender.getName()));
+      } else {
+        tx.rollback();
+      }
+      return;
+    }
+    negotiate(sender.getName(), endpoint, sdpOffer, tx);
+  }
+
+  /**
+   * Subscribes to several senders with a single negotiation: every endpoint is wired and every
+   * offer processed in one transaction, the answers go back to the client in one message, and
+   * candidates are then gathered on all the endpoints together.
+   *
+   * @param offers
+   *          the SDP offer for each sender
+   */
+  public void receiveVideoFromMany(Map<UserSession, String> offers) throws IOException {
+    final Transaction tx = pipeline.beginTransaction();
+    final Map<UserSession, String> batch = new LinkedHashMap<>();
+    final Map<String, WebRtcEndpoint> endpoints = new LinkedHashMap<>();
+    final Map<String, TFuture<String>> sdpAnswers = new LinkedHashMap<>();
+    boolean released = false;
+    for (final Map.Entry<UserSession, String> offer : offers.entrySet()) {
+      final UserSession sender = offer.getKey();
+      if (!sender.getName().equals(name) && !room.receives(this, sender)) {
+        log.warn("USER {}: not allowed to receive {} in {} mode", this.name, sender.getName(),
+            room.getMode());
+        continue;
+      }
+      if (paused.contains(sender.getName())) {
+        log.debug("USER {}: video from {} is paused", this.name, sender.getName());
+        continue;
+      }
+      final WebRtcEndpoint endpoint = this.getEndpointForUser(sender, tx);
+      if (paused.contains(sender.getName())) {
+        released |= releasePaused(sender.getName(), endpoint, tx);
+        continue;
+      }
+      batch.put(sender, offer.getValue());
+      endpoints.put(sender.getName(), endpoint);
+      sdpAnswers.put(sender.getName(), endpoint.processOffer(tx, offer.getValue()));
+    }
+    if (sdpAnswers.isEmpty()) {
+      if (released) {
+        tx.commit(new LoggingContinuation<Void>(log,
+            "USER " + name + ": release the endpoints for paused participants"));
+      } else {
+        tx.rollback();
+      }
+      return;
+    }
+
+    log.info("USER {}: connecting with {} participants in room {}", this.name, sdpAnswers.size(),
+        this.roomName);
+    tx.commit(new TimedContinuation<>(room.getContext().getProcessOfferTimer(),
+        new Continuation<Void>() {
 
-    log.trace("USER {}: SdpAnswer for {} is {}", this.name, sender.getName(), ipSdpAnswer);
-    this.sendMessage(scParams);
-    log.debug("gather candidates");
-    this.getEndpointForUser(sender).gatherCandidates();
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            answerAll(endpoints, sdpAnswers);
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            // The client is still waiting for an answer to each offer
+            log.warn("USER {}: could not process SdpOffers for {}, negotiating one by one", name,
+                sdpAnswers.keySet(), cause);
+            discard(endpoints);
+            retryOneByOne(batch);
+          }
+        }));
+  }
+
+  /**
+   * Releases the endpoint set up for a participant that was paused in the meantime. The pause
+   * runs under the room lock while subscriptions do not, so it may come after the paused check
+   * but before the endpoint was registered, in which case it had nothing to release. Checking
+   * again once the endpoint is registered leaves no gap: either the pause finds the endpoint, or
+   * the check finds the pause.
+   *
+   * @return whether the endpoint was released as part of the transaction, as opposed to by the
+   *         pause itself
+   */
+  private boolean releasePaused(String senderName, WebRtcEndpoint endpoint, Transaction tx) {
+    log.debug("USER {}: video from {} was paused meanwhile", this.name, senderName);
+    if (endpoint == outgoingMedia || !incomingMedia.remove(senderName, endpoint)) {
+      return false;
+    }
+    incomingKbps.remove(senderName);
+    room.releaseEndpoint(endpoint, tx);
+    return true;
+  }
+
+  /**
+   * Negotiates the offers of a failed bulk subscription one at a time. This is signaling work,
+   * queued behind the messages of the session like any other, and never run on the thread of the
+   * media server client. A session that is gone subscribes again once it resumes, if it does.
+   */
+  private void retryOneByOne(final Map<UserSession, String> offers) {
+    final WebSocketSession session = getSession();
+    if (!session.isOpen()) {
+      return;
+    }
+    room.getContext().getSignaling().execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        if (!room.getParticipants().contains(UserSession.this)) {
+          return;
+        }
+        for (final Map.Entry<UserSession, String> offer : offers.entrySet()) {
+          try {
+            receiveVideoFrom(offer.getKey(), offer.getValue());
+          } catch (IOException e) {
+            log.warn("USER {}: could not subscribe to {}", name, offer.getKey().getName(), e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Releases the incoming endpoints of a failed negotiation, so that the next one creates them
+   * anew instead of reusing endpoints left half negotiated.
+   */
+  private void discard(Map<String, WebRtcEndpoint> endpoints) {
+    final Transaction tx = pipeline.beginTransaction();
+    int released = 0;
+    for (final Map.Entry<String, WebRtcEndpoint> endpoint : endpoints.entrySet()) {
+      if (endpoint.getValue() != outgoingMedia
+          && incomingMedia.remove(endpoint.getKey(), endpoint.getValue())) {
+        incomingKbps.remove(endpoint.getKey());
+        room.releaseEndpoint(endpoint.getValue(), tx);
+        released++;
+      }
+    }
+    if (released > 0) {
+      tx.commit(new LoggingContinuation<Void>(log,
+          "USER " + name + ": release " + released + " endpoints of a failed negotiation"));
+    } else {
+      tx.rollback();
+    }
   }
 
-  private WebRtcEndpoint getEndpointForUser(final UserSession sender) {
+  /**
+   * Sends the answers of a committed bulk negotiation, leaving out the offers the media server
+   * rejected, and gathers candidates for the streams that were answered.
+   */
+  private void answerAll(Map<String, WebRtcEndpoint> endpoints,
+      Map<String, TFuture<String>> sdpAnswers) throws IOException {
+    final Map<String, String> answered = new LinkedHashMap<>();
+    final Transaction tx = pipeline.beginTransaction();
+    for (final Map.Entry<String, TFuture<String>> sdpAnswer : sdpAnswers.entrySet()) {
+      try {
+        answered.put(sdpAnswer.getKey(), sdpAnswer.getValue().get());
+      } catch (KurentoException e) {
+        log.warn("USER {}: could not process SdpOffer for {}", name, sdpAnswer.getKey(), e);
+        continue;
+      }
+      endpoints.get(sdpAnswer.getKey()).gatherCandidates(tx);
+    }
+    if (answered.isEmpty()) {
+      tx.rollback();
+      return;
+    }
+
+    sendMessage(SignalingCodec.receiveVideoAnswers(answered));
+    tx.commit(new LoggingContinuation<Void>(log,
+        "USER " + name + ": gather candidates for " + answered.keySet()));
+  }
+
+  /**
+   * Subscribes to the mixed stream of an MCU room.
+   */
+  public void receiveMix(final String sdpOffer) throws IOException {
+    final HubPort port = hubPort;
+    if (port == null) {
+      log.warn("USER {}: no mixed stream in room {}", this.name, this.roomName);
+      return;
+    }
+    if (port.isCommited()) {
+      subscribeMix(port, sdpOffer);
+      return;
+    }
+
+    // The port is still in the transaction of the join or mode switch that created it
+    port.whenCommited(new Continuation<Object>() {
+
+      @Override
+      public void onSuccess(Object result) throws Exception {
+        subscribeMix(port, sdpOffer);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.warn("USER {}: no mixed stream in room {}", name, roomName, cause);
+      }
+    });
+  }
+
+  private void subscribeMix(HubPort port, String sdpOffer) {
+    final Transaction tx = pipeline.beginTransaction();
+    WebRtcEndpoint incoming = incomingMedia.get(Room.MIXED_STREAM);
+    if (incoming == null) {
+      log.debug("PARTICIPANT {}: creating endpoint for the mixed stream", this.name);
+      incoming = createIncoming(Room.MIXED_STREAM);
+      port.connect(tx, incoming);
+    }
+
+    negotiate(Room.MIXED_STREAM, incoming, sdpOffer, tx);
+  }
+
+  /**
+   * Processes the offer in the transaction that wires the endpoint, so that the subscription
+   * costs a single round-trip. Candidates are gathered once the answer is on its way.
+   */
+  private void negotiate(final String streamName, final WebRtcEndpoint endpoint,
+      String sdpOffer, Transaction tx) {
+    final TFuture<String> sdpAnswer = endpoint.processOffer(tx, sdpOffer);
+    tx.commit(new TimedContinuation<>(room.getContext().getProcessOfferTimer(),
+        new Continuation<Void>() {
+
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            final String ipSdpAnswer = sdpAnswer.get();
+            log.trace("USER {}: SdpAnswer for {} is {}", name, streamName, ipSdpAnswer);
+            sendMessage(SignalingCodec.receiveVideoAnswer(streamName, ipSdpAnswer));
+            log.debug("gather candidates");
+            endpoint.gatherCandidates(new LoggingContinuation<Void>(log,
+                "USER " + name + ": gather candidates for " + streamName));
+          }
+
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            log.warn("USER {}: could not process SdpOffer for {}", name, streamName, cause);
+          }
+        }));
+  }
+
+  /**
+   * Feeds the outgoing media into a room mixer. The port is created and connected as part of the
+   * given transaction.
+   */
+  public void joinMix(Composite composite, Transaction tx) {
+    final HubPort port = new HubPort.Builder(composite).build(tx);
+    outgoingMedia.connect(tx, port);
+    hubPort = port;
+  }
+
+  /**
+   * Stops sending to and receiving from the room mixer, if the user was mixed.
+   */
+  public void leaveMix(Transaction tx) {
+    final HubPort port = hubPort;
+    hubPort = null;
+    if (port != null) {
+      cancelVideoFrom(Room.MIXED_STREAM, tx);
+      port.release(tx);
+    }
+  }
+
+  private WebRtcEndpoint getEndpointForUser(final UserSession sender, Transaction tx) {
     if (sender.getName().equals(name)) {
       log.debug("PARTICIPANT {}: configuring loopback", this.name);
       return outgoingMedia;
@@ -211,148 +565,280 @@ public class UserSession implements Closeable {
     WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
     if (incoming == null) {
       log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name, sender.getName());
-      incoming = new WebRtcEndpoint.Builder(pipeline).build();
+      incoming = createIncoming(sender.getName());
+    }
 
-      incoming.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+    log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name, sender.getName());
+    sender.getOutgoingWebRtcPeer().connect(tx, incoming);
 
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.addProperty("name", sender.getName());
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
-        }
-      });
+    return incoming;
+  }
 
-      incomingMedia.put(sender.getName(), incoming);
-    }
+  /**
+   * Takes an endpoint for an incoming stream. Listeners and property setters cannot be part of a
+   * transaction in this client, so the candidate subscription and the bandwidth limit are sent on
+   * their own, ahead of the transaction.
+   */
+  private WebRtcEndpoint createIncoming(final String streamName) {
+    final WebRtcEndpoint incoming = room.createEndpoint();
+    incoming.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
-    log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name, sender.getName());
-    sender.getOutgoingWebRtcPeer().connect(incoming);
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        outbound.sendIceCandidate(streamName, event.getCandidate());
+      }
+    });
 
+    incomingMedia.put(streamName, incoming);
+    applyLimit(streamName, incoming);
     return incoming;
   }
 
-  public void cancelVideoFrom(final UserSession sender) {
-    this.cancelVideoFrom(sender.getName());
+  /**
+   * Limits the bandwidth of one incoming stream. Streams that are not received yet get the limit
+   * when their endpoint is created.
+   *
+   * @param senderName
+   *          the participant, or mixed stream, being received
+   * @param kbps
+   *          the highest bandwidth the media server may send this user for the stream
+   */
+  public void limitVideoFrom(String senderName, int kbps) {
+    final Integer previous = incomingKbps.put(senderName, kbps);
+    if (previous != null && previous == kbps) {
+      return;
+    }
+    final WebRtcEndpoint incoming = incomingMedia.get(senderName);
+    if (incoming != null) {
+      applyLimit(senderName, incoming);
+    }
+  }
+
+  /**
+   * Limits the bandwidth this user may send.
+   */
+  public void limitUplink(int kbps) {
+    if (uplinkKbps == kbps) {
+      return;
+    }
+    uplinkKbps = kbps;
+    log.debug("PARTICIPANT {}: uplink limited to {} kbps", this.name, kbps);
+    outgoingMedia.setMaxVideoRecvBandwidth(kbps,
+        new LoggingContinuation<Void>(log, "USER " + name + ": set max recv bandwidth"));
+  }
+
+  private void applyLimit(String senderName, WebRtcEndpoint incoming) {
+    final Integer kbps = incomingKbps.get(senderName);
+    if (kbps != null) {
+      log.debug("PARTICIPANT {}: video from {} limited to {} kbps", this.name, senderName, kbps);
+      incoming.setMaxVideoSendBandwidth(kbps, new LoggingContinuation<Void>(log,
+          "USER " + name + ": set max send bandwidth for " + senderName));
+    }
+  }
+
+  /**
+   * Drops every incoming stream, as when the room changes topology.
+   */
+  public void cancelAllVideo(Transaction tx) {
+    for (final String senderName : incomingMedia.keySet()) {
+      cancelVideoFrom(senderName, tx);
+    }
   }
 
-  public void cancelVideoFrom(final String senderName) {
+  public void cancelVideoFrom(final String senderName, Transaction tx) {
     log.debug("PARTICIPANT {}: canceling video reception from {}", this.name, senderName);
     final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
+    incomingKbps.remove(senderName);
 
-    log.debug("PARTICIPANT {}: removing endpoint for {}", this.name, senderName);
-    
     if (incoming != null) {
-      incoming.release(new Continuation<Void>() {
-        @Override
-        public void onSuccess(Void result) throws Exception {
-          log.trace("PARTICIPANT {}: Released successfully incoming EP for {}",
-              UserSession.this.name, senderName);
-        }
+      log.debug("PARTICIPANT {}: removing endpoint for {}", this.name, senderName);
+      room.releaseEndpoint(incoming, tx);
+    }
+  }
 
-        @Override
-        public void onError(Throwable cause) throws Exception {
-          log.warn("PARTICIPANT {}: Could not release incoming EP for {}", UserSession.this.name,
-              senderName);
-        }
-      });
+  /**
+   * Stops receiving a participant that left the active set of this user, releasing its endpoint
+   * as part of the given transaction.
+   *
+   * @return whether the participant was active, in which case the client must be told
+   */
+  public boolean pauseVideoFrom(String senderName, Transaction tx) {
+    if (!paused.add(senderName)) {
+      return false;
     }
+    log.debug("PARTICIPANT {}: pausing video from {}", this.name, senderName);
+    cancelVideoFrom(senderName, tx);
+    return true;
   }
 
-  @Override
-  public void close() throws IOException {
-    log.debug("PARTICIPANT {}: Releasing resources", this.name);
-    for (final String remoteParticipantName : incomingMedia.keySet()) {
+  /**
+   * Lets this user subscribe again to a participant that entered its active set.
+   *
+   * @return whether the participant was paused, in which case the client must be told
+   */
+  public boolean resumeVideoFrom(String senderName) {
+    if (!paused.remove(senderName)) {
+      return false;
+    }
+    log.debug("PARTICIPANT {}: resuming video from {}", this.name, senderName);
+    return true;
+  }
 
-      log.trace("PARTICIPANT {}: Released incoming EP for {}", this.name, remoteParticipantName);
+  /**
+   * The participants this user is not receiving because they are outside its active set.
+   */
+  public Set<String> getPausedVideo() {
+    return Collections.unmodifiableSet(paused);
+  }
 
-      final WebRtcEndpoint ep = this.incomingMedia.get(remoteParticipantName);
+  /**
+   * Forgets every paused participant, as when the room changes topology and the active set is
+   * computed anew.
+   */
+  public void clearPausedVideo() {
+    paused.clear();
+  }
 
-      ep.release(new Continuation<Void>() {
+  /**
+   * Drops the stream of a participant that left the room, paused or not.
+   */
+  public void forget(String senderName, Transaction tx) {
+    paused.remove(senderName);
+    cancelVideoFrom(senderName, tx);
+  }
 
-        @Override
-        public void onSuccess(Void result) throws Exception {
-          log.trace("PARTICIPANT {}: Released successfully incoming EP for {}",
-              UserSession.this.name, remoteParticipantName);
-        }
+  /**
+   * Records the participants whose tiles are on this user's screen.
+   */
+  public void setVisible(Collection<String> names) {
+    visible = Collections.unmodifiableSet(new HashSet<>(names));
+  }
 
-        @Override
-        public void onError(Throwable cause) throws Exception {
-          log.warn("PARTICIPANT {}: Could not release incoming EP for {}", UserSession.this.name,
-              remoteParticipantName);
-        }
-      });
-    }
+  public boolean sees(String senderName) {
+    return visible.contains(senderName);
+  }
 
-    outgoingMedia.release(new Continuation<Void>() {
+  /**
+   * Releases every media element of this user in a single transaction.
+   */
+  @Override
+  public void close() throws IOException {
+    final Transaction tx = pipeline.beginTransaction();
+    close(tx);
+    tx.commit(new LoggingContinuation<Void>(log,
+        "PARTICIPANT " + this.name + ": release endpoints"));
+  }
 
-      @Override
-      public void onSuccess(Void result) throws Exception {
-        log.trace("PARTICIPANT {}: Released outgoing EP", UserSession.this.name);
-      }
+  /**
+   * Adds the release of every media element of this user to a transaction, as when the user
+   * leaves or the whole room is closed.
+   */
+  public void close(Transaction tx) {
+    log.debug("PARTICIPANT {}: Releasing resources", this.name);
+    leaveMix(tx);
+    for (final String remoteParticipantName : incomingMedia.keySet()) {
+      log.trace("PARTICIPANT {}: Released incoming EP for {}", this.name, remoteParticipantName);
+      cancelVideoFrom(remoteParticipantName, tx);
+    }
 
-      @Override
-      public void onError(Throwable cause) throws Exception {
-        log.warn("USER {}: Could not release outgoing EP", UserSession.this.name);
-      }
-    });
+    room.releaseEndpoint(outgoingMedia, tx);
     log.info("USER {}: END recording in room {}", name, roomName);
     clearRecording();
   }
 
-  public void clearRecording() {
+  /**
+   * Adds the media elements of this user: its endpoints, its port in the mixer and its recorder.
+   */
+  public synchronized void collectMediaElements(Collection<MediaObject> elements) {
+    Room.addCommitted(elements, outgoingMedia);
+    for (final WebRtcEndpoint incoming : incomingMedia.values()) {
+      Room.addCommitted(elements, incoming);
+    }
+    Room.addCommitted(elements, hubPort);
+    Room.addCommitted(elements, recorderCaller);
+  }
+
+  /**
+   * Stops the recording of this user, if any, and queues its conversion.
+   */
+  public synchronized void clearRecording() {
+    if (recorderCaller == null) {
+      return;
+    }
     log.info("USER {}: END recording in room {}", name, roomName);
+    if (pendingStop != null) {
+      pendingStop.cancel(false);
+      pendingStop = null;
+    }
     recorderCaller.stop();
     recorderCaller.release();
+    recorderCaller = null;
+    room.getCatalog().recordingStopped(recordingUri, new Date(), new File(
+        RecordingStorage.toPath(recordingUri) + RecordingStorage.RECORDING_EXT).length());
     // conversion
     log.info("should run {}", pendingConversion);
     if (pendingConversion == true) {
-      log.info("Run Conversion");
-      new Thread(new Runnable() {
-        public void run(){
-           try {
-            log.info("Running: {}", "ffmpeg -i " + RECORDING_PATH + preConvertedName + RECORDING_EXT + " -strict -2 -q:vscale 0 " + RECORDING_PATH + preConvertedName + ".mp4");
-            Process proc = Runtime.getRuntime().exec("ffmpeg -i " + RECORDING_PATH + preConvertedName + RECORDING_EXT + " -strict -2 -q:vscale 0 " + RECORDING_PATH + preConvertedName + ".mp4");
-            proc.waitFor();
-            log.info("Running: {}", "ffmpeg -i " + RECORDING_PATH + preConvertedName + ".mp4 -profile:v baseline -level 3.0 -s 1280x960 -start_number 0 -hls_time 10 -hls_list_size 0 -strict -2 -f hls " + RECORDING_PATH + preConvertedName +".m3u8");
-            Runtime.getRuntime().exec("ffmpeg -i " + RECORDING_PATH + preConvertedName + ".mp4 -profile:v baseline -level 3.0 -s 1280x960 -start_number 0 -hls_time 10 -hls_list_size 0 -strict -2 -f hls " + RECORDING_PATH + preConvertedName +".m3u8");
-          }
-          catch (IOException e) {
-            log.info(e.getMessage());
-          }
-          catch (InterruptedException ie) {
-            log.info(ie.getMessage());
-          }
-        }
-      }).start();
+      room.getTranscoder().submit(recordingUri,
+          isTeacher ? TranscodeJob.Priority.HIGH : TranscodeJob.Priority.NORMAL);
     }
     pendingConversion = false;
   }
 
-  public void sendMessage(JsonObject message) throws IOException {
+  /**
+   * Sends a message serialized by the {@link SignalingCodec}.
+   */
+  public void sendMessage(String message) throws IOException {
     log.debug("USER {}: Sending message {}", name, message);
-    synchronized (session) {
-      session.sendMessage(new TextMessage(message.toString()));
-    }
+    outbound.send(new TextMessage(message));
+  }
+
+  /**
+   * Sends an already serialized frame. Used to share one frame between several recipients.
+   */
+  public void sendMessage(TextMessage frame) throws IOException {
+    outbound.send(frame);
   }
 
   public void addCandidate(IceCandidate candidate, String name) {
+    final LoggingContinuation<Void> added = new LoggingContinuation<>(log,
+        "USER " + this.name + ": add candidate for " + name);
     if (this.name.compareTo(name) == 0) {
-      outgoingMedia.addIceCandidate(candidate);
+      outgoingMedia.addIceCandidate(candidate, added);
     } else {
       WebRtcEndpoint webRtc = incomingMedia.get(name);
       if (webRtc != null) {
-        webRtc.addIceCandidate(candidate);
+        webRtc.addIceCandidate(candidate, added);
+      }
+    }
+  }
+
+  /**
+   * Adds a batch of remote candidates, grouped by the participant whose endpoint they belong to.
+   * All the candidates are sent to the media server in a single transaction.
+   *
+   * @param candidates
+   *          the candidates for each participant name
+   */
+  public void addCandidates(Map<String, List<IceCandidate>> candidates) {
+    final Transaction tx = pipeline.beginTransaction();
+    int added = 0;
+    for (Map.Entry<String, List<IceCandidate>> entry : candidates.entrySet()) {
+      final WebRtcEndpoint webRtc = this.name.equals(entry.getKey()) ? outgoingMedia
+          : incomingMedia.get(entry.getKey());
+      if (webRtc == null) {
+        continue;
+      }
+      for (IceCandidate candidate : entry.getValue()) {
+        webRtc.addIceCandidate(tx, candidate);
+        added++;
       }
     }
+    if (added > 0) {
+      tx.commit(new LoggingContinuation<Void>(log,
+          "USER " + this.name + ": add " + added + " candidates"));
+    } else {
+      tx.rollback();
+    }
   }
 
   /*
@@ -0,0 +1,17 @@
+CREATE TABLE IF NOT EXISTS recording (
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  path VARCHAR(1024) NOT NULL,
+  room VARCHAR(255) NOT NULL,
+  user_name VARCHAR(255) NOT NULL,
+  teacher BOOLEAN NOT NULL,
+  started_at TIMESTAMP NOT NULL,
+  ended_at TIMESTAMP,
+  duration_ms BIGINT,
+  size_bytes BIGINT,
+  status VARCHAR(16) NOT NULL
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS recording_path ON recording (path);
+CREATE INDEX IF NOT EXISTS recording_room_started ON recording (room, started_at);
+CREATE INDEX IF NOT EXISTS recording_user_started ON recording (user_name, started_at);
+CREATE INDEX IF NOT EXISTS recording_started ON recording (started_at);
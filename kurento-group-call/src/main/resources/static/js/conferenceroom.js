@@ -15,16 +15,71 @@
  *
  */
 
-var ws = new WebSocket('wss://' + location.host + '/groupcall');
+var ws = connect();
 var participants = {};
 var name;
 var state = true;
 
+// Local candidates gathered during this window are sent together in one message
+var ICE_BATCH_WINDOW = 20;
+var pendingCandidates = [];
+var candidateFlushTimer = null;
+
+// Name of the single stream received in MCU rooms
+var MIXED_STREAM = '#mix';
+
+// Local audio above this level counts as speech, reported at most once per interval
+var SPEAKING_LEVEL = 0.05;
+var SPEAKING_INTERVAL = 2000;
+var speakingTimer = null;
+var speakingContext = null;
+
+// Tiles on screen, reported to the server once they stop moving for this long
+var VIEWPORT_DELAY = 200;
+var visibleTiles = {};
+var viewportTimer = null;
+var tileObserver = window.IntersectionObserver ? new IntersectionObserver(onTilesMoved) : null;
+
+// A dropped connection resumes the session with this token while the server keeps our place
+var RECONNECT_DELAY = 1000;
+var roomName;
+var resumeToken = null;
+
 window.onbeforeunload = function() {
 	//ws.close();
 };
 
-ws.onmessage = function(message) {
+function connect() {
+	var socket = new WebSocket('wss://' + location.host + '/groupcall');
+	socket.onmessage = onMessage;
+	socket.onclose = function () {
+		if (socket == ws && resumeToken != null) {
+			setTimeout(rejoin, RECONNECT_DELAY);
+		}
+	};
+	return socket;
+}
+
+/**
+ * Opens a new connection and resumes the session on it. Every stream is
+ * negotiated again from the roster the server answers with, while the other
+ * participants keep receiving us untouched.
+ */
+function rejoin() {
+	console.log('Connection lost, resuming session in room ' + roomName);
+	ws = connect();
+	ws.onopen = function () {
+		resetRoom();
+		sendMessage({
+			id : 'rejoinRoom',
+			name : name,
+			room : roomName,
+			token : resumeToken
+		});
+	};
+}
+
+function onMessage(message) {
 	var parsedMessage = JSON.parse(message.data);
 	console.info('Received message: ' + message.data);
 
@@ -38,22 +93,67 @@ ws.onmessage = function(message) {
 	case 'participantLeft':
 		onParticipantLeft(parsedMessage);
 		break;
+	case 'roomMode':
+		onRoomMode(parsedMessage);
+		break;
 	case 'receiveVideoAnswer':
 		receiveVideoResponse(parsedMessage);
 		break;
+	case 'receiveVideoAnswers':
+		parsedMessage.answers.forEach(receiveVideoResponse);
+		break;
+	case 'videoPaused':
+		onVideoPaused(parsedMessage);
+		break;
+	case 'videoResumed':
+		onVideoResumed(parsedMessage);
+		break;
 	case 'iceCandidate':
-		participants[parsedMessage.name].rtcPeer.addIceCandidate(parsedMessage.candidate, function (error) {
-	        if (error) {
-		      console.error("Error adding candidate: " + error);
-		      return;
-	        }
-	    });
+		addRemoteCandidate(parsedMessage);
 	    break;
+	case 'iceCandidates':
+		parsedMessage.candidates.forEach(addRemoteCandidate);
+		break;
 	default:
 		console.error('Unrecognized message', parsedMessage);
 	}
 }
 
+function addRemoteCandidate(entry) {
+	var participant = participants[entry.name];
+	if (participant == null || participant.rtcPeer == null) {
+		return console.warn('Candidate for unknown participant ' + entry.name);
+	}
+	participant.rtcPeer.addIceCandidate(entry.candidate, function (error) {
+		if (error) {
+			console.error("Error adding candidate: " + error);
+			return;
+		}
+	});
+}
+
+function queueIceCandidate(name, candidate) {
+	pendingCandidates.push({
+		name : name,
+		candidate : candidate
+	});
+	if (candidateFlushTimer == null) {
+		candidateFlushTimer = setTimeout(flushIceCandidates, ICE_BATCH_WINDOW);
+	}
+}
+
+function flushIceCandidates() {
+	candidateFlushTimer = null;
+	if (pendingCandidates.length == 0) {
+		return;
+	}
+	sendMessage({
+		id : 'onIceCandidates',
+		candidates : pendingCandidates
+	});
+	pendingCandidates = [];
+}
+
 function register() {
 	/*if (!state) {
 		if (state == true) {
@@ -64,6 +164,8 @@ function register() {
 	}*/
 	name = document.getElementById('name').value;
 	var room = document.getElementById('roomName').value;
+	var mode = document.getElementById('roomMode').value;
+	roomName = room;
 
 	document.getElementById('room-header').innerText = 'ROOM ' + room;
 	document.getElementById('join').style.display = 'none';
@@ -73,6 +175,7 @@ function register() {
 		id : 'joinRoom',
 		name : name,
 		room : room,
+		mode : mode
 	}
 	sendMessage(message);
 }
@@ -82,7 +185,11 @@ function onNewParticipant(request) {
 }
 
 function receiveVideoResponse(result) {
-	participants[result.name].rtcPeer.processAnswer (result.sdpAnswer, function (error) {
+	var participant = participants[result.name];
+	if (participant == null || participant.rtcPeer == null) {
+		return console.warn('Answer for unknown participant ' + result.name);
+	}
+	participant.rtcPeer.processAnswer (result.sdpAnswer, function (error) {
 		if (error) return console.error (error);
 	});
 }
@@ -107,7 +214,8 @@ function onExistingParticipants(msg) {
 			frameRate: 30
 		}
 	};
-	console.log(name + " registered in room " + room);
+	console.log(name + " registered in room " + roomName);
+	resumeToken = msg.token;
 	var participant = new Participant(name, msg.selfIsTeacher != null ? msg.selfIsTeacher : false);
 	participants[name] = participant;
 	var video = participant.getVideoElement();
@@ -123,19 +231,119 @@ function onExistingParticipants(msg) {
 			  return console.error(error);
 		  }
 		  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
+		  watchSpeaking(this.getLocalStream());
 	});
 
-	msg.data.forEach(receiveVideo);
+	subscribe(msg);
 }
 
-function leaveRoom() {
+/**
+ * Tells the server whenever the local participant speaks, so that it is kept
+ * among the last speakers everybody receives.
+ */
+function watchSpeaking(stream) {
+	var AudioContext = window.AudioContext || window.webkitAudioContext;
+	if (AudioContext == null || stream == null) {
+		return;
+	}
+	speakingContext = new AudioContext();
+	var analyser = speakingContext.createAnalyser();
+	speakingContext.createMediaStreamSource(stream).connect(analyser);
+	var samples = new Float32Array(analyser.fftSize);
+	var lastReport = 0;
+	speakingTimer = setInterval(function () {
+		analyser.getFloatTimeDomainData(samples);
+		var energy = 0;
+		for (var i = 0; i < samples.length; i++) {
+			energy += samples[i] * samples[i];
+		}
+		var now = Date.now();
+		if (Math.sqrt(energy / samples.length) > SPEAKING_LEVEL
+				&& now - lastReport > SPEAKING_INTERVAL) {
+			lastReport = now;
+			sendMessage({
+				id : 'speaking'
+			});
+		}
+	}, 100);
+}
+
+function onTilesMoved(entries) {
+	entries.forEach(function (entry) {
+		if (entry.isIntersecting) {
+			visibleTiles[entry.target.id] = true;
+		} else {
+			delete visibleTiles[entry.target.id];
+		}
+	});
+	if (viewportTimer == null) {
+		viewportTimer = setTimeout(sendViewport, VIEWPORT_DELAY);
+	}
+}
+
+function sendViewport() {
+	viewportTimer = null;
 	sendMessage({
-		id : 'leaveRoom'
+		id : 'viewport',
+		visible : Object.keys(visibleTiles)
 	});
+}
 
+function onRoomMode(msg) {
+	console.log('Room switched to ' + msg.mode + ' mode');
 	for ( var key in participants) {
-		participants[key].dispose();
+		if (key != name) {
+			removeParticipant(key);
+		}
+	}
+	subscribe(msg);
+}
+
+function subscribe(msg) {
+	if (msg.mode == 'mcu') {
+		receiveVideo({ name : MIXED_STREAM, isTeacher : true });
+	} else {
+		receiveVideos(msg.data);
 	}
+}
+
+/**
+ * Subscribes to several participants with a single message: the offers are
+ * sent together once all of them have been generated, and the answers come
+ * back together. Paused participants only get their tile.
+ */
+function receiveVideos(senders) {
+	var offers = [];
+	var pending = senders.filter(function (senderObj) {
+		return !senderObj.paused;
+	}).length;
+	senders.forEach(function (senderObj) {
+		receiveVideo(senderObj, function (error, offerSdp) {
+			pending--;
+			if (error) {
+				console.error('sdp offer error for ' + senderObj.name);
+			} else {
+				offers.push({
+					sender : senderObj.name,
+					sdpOffer : offerSdp
+				});
+			}
+			if (pending == 0 && offers.length > 0) {
+				sendMessage({
+					id : 'receiveVideoFromMany',
+					offers : offers
+				});
+			}
+		});
+	});
+}
+
+function leaveRoom() {
+	resumeToken = null;
+	sendMessage({
+		id : 'leaveRoom'
+	});
+	resetRoom();
 
 	document.getElementById('join').style.display = 'block';
 	document.getElementById('room').style.display = 'none';
@@ -144,33 +352,91 @@ function leaveRoom() {
 	state = false;
 }
 
-function receiveVideo(senderObj) {
+/**
+ * Drops every tile and peer connection, as when leaving or before resuming a
+ * session.
+ */
+function resetRoom() {
+	clearTimeout(candidateFlushTimer);
+	candidateFlushTimer = null;
+	pendingCandidates = [];
+	clearTimeout(viewportTimer);
+	viewportTimer = null;
+	clearInterval(speakingTimer);
+	speakingTimer = null;
+	if (speakingContext != null) {
+		speakingContext.close();
+		speakingContext = null;
+	}
+
+	for ( var key in participants) {
+		removeParticipant(key);
+	}
+}
+
+function receiveVideo(senderObj, onOffer) {
 	var sender = senderObj.name;
 	var participant = new Participant(sender, senderObj.isTeacher);
 	participants[sender] = participant;
-	var video = participant.getVideoElement();
+	if (tileObserver != null && sender != MIXED_STREAM) {
+		tileObserver.observe(participant.getElement());
+	}
+
+	if (senderObj.paused) {
+		participant.setPaused(true);
+	} else {
+		subscribeTo(participant, onOffer);
+	}
+}
 
+function subscribeTo(participant, onOffer) {
 	var options = {
-      remoteVideo: video,
+      remoteVideo: participant.getVideoElement(),
       onicecandidate: participant.onIceCandidate.bind(participant)
     }
 
+	participant.setPaused(false);
 	participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
 			function (error) {
 			  if(error) {
 				  return console.error(error);
 			  }
-			  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
+			  this.generateOffer (onOffer || participant.offerToReceiveVideo.bind(participant));
 	});;
 }
 
-function onParticipantLeft(request) {
-	console.log('Participant ' + request.name + ' left');
+/**
+ * The participant left the active set: its tile stays, without video.
+ */
+function onVideoPaused(request) {
 	var participant = participants[request.name];
 	if (participant != null) {
-		participant.dispose();
-		delete participants[request.name];
+		participant.setPaused(true);
+	}
+}
+
+function onVideoResumed(request) {
+	var participant = participants[request.name];
+	if (participant != null && participant.rtcPeer == null) {
+		subscribeTo(participant);
+	}
+}
+
+function onParticipantLeft(request) {
+	console.log('Participant ' + request.name + ' left');
+	if (participants[request.name] != null) {
+		removeParticipant(request.name);
+	}
+}
+
+function removeParticipant(key) {
+	var participant = participants[key];
+	if (tileObserver != null) {
+		tileObserver.unobserve(participant.getElement());
 	}
+	delete visibleTiles[key];
+	participant.dispose();
+	delete participants[key];
 }
 
 function sendMessage(message) {
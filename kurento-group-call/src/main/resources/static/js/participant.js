@@ -92,20 +92,27 @@ function Participant(name, isTeacher) {
 
 	this.onIceCandidate = function (candidate, wp) {
 		  console.log("Local candidate" + JSON.stringify(candidate));
-
-		  var message = {
-		    id: 'onIceCandidate',
-		    candidate: candidate,
-		    name: name
-		  };
-		  sendMessage(message);
+		  queueIceCandidate(name, candidate);
 	}
 
 	Object.defineProperty(this, 'rtcPeer', { writable: true});
 
+	/**
+	 * Drops the video of a participant outside the active set, keeping its tile.
+	 */
+	this.setPaused = function(paused) {
+		if (paused && this.rtcPeer != null) {
+			this.rtcPeer.dispose();
+			this.rtcPeer = null;
+		}
+		video.className = paused ? 'paused' : '';
+	}
+
 	this.dispose = function() {
 		console.log('Disposing participant ' + this.name);
-		this.rtcPeer.dispose();
+		if (this.rtcPeer != null) {
+			this.rtcPeer.dispose();
+		}
 		container.parentNode.removeChild(container);
 	};
 }
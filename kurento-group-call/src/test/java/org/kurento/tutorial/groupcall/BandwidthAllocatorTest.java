@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @since 6.6.2
+ */
+public class BandwidthAllocatorTest {
+
+  private final BandwidthAllocator allocator = new BandwidthAllocator(4000, 3, 100, 2000);
+
+  @Test
+  public void singleStreamIsCappedAtMax() {
+    assertEquals(2000, allocator.single());
+  }
+
+  @Test
+  public void tilesAreClampedToRange() {
+    assertEquals(2000, allocator.tile(0));
+    assertEquals(2000, allocator.tile(1));
+    assertEquals(1000, allocator.tile(4));
+    assertEquals(100, allocator.tile(100));
+  }
+
+  @Test
+  public void teacherWeighsMoreThanStudents() {
+    final Map<String, Integer> shares = allocator.split(Arrays.asList(user("teacher", true),
+        user("s1", false), user("s2", false), user("s3", false)));
+
+    assertEquals(2000, (int) shares.get("teacher"));
+    assertEquals(666, (int) shares.get("s1"));
+    assertEquals(666, (int) shares.get("s3"));
+  }
+
+  @Test
+  public void fewPublishersAreCappedAtMax() {
+    final Map<String, Integer> shares = allocator.split(Arrays.asList(user("s1", false)));
+
+    assertEquals(2000, (int) shares.get("s1"));
+  }
+
+  @Test
+  public void manyPublishersAreKeptAboveMin() {
+    final List<UserSession> publishers = new ArrayList<>();
+    publishers.add(user("teacher", true));
+    for (int i = 0; i < 50; i++) {
+      publishers.add(user("s" + i, false));
+    }
+
+    final Map<String, Integer> shares = allocator.split(publishers);
+
+    assertEquals(226, (int) shares.get("teacher"));
+    assertEquals(100, (int) shares.get("s0"));
+    assertEquals(100, (int) shares.get("s49"));
+  }
+
+  private static UserSession user(String name, boolean teacher) {
+    final UserSession user = mock(UserSession.class);
+    when(user.getName()).thenReturn(name);
+    when(user.getIsTeacher()).thenReturn(teacher);
+    return user;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.tutorial.groupcall.RecordingCatalog.Recording;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+/**
+ * Runs against an in-memory H2 database created from the application schema.
+ *
+ * @since 6.6.2
+ */
+public class RecordingCatalogTest {
+
+  private static final long T0 = 1476789000000L;
+
+  private EmbeddedDatabase db;
+  private RecordingCatalog catalog;
+
+  @Before
+  public void setUp() {
+    db = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.H2)
+        .addScript("schema.sql").build();
+    catalog = new RecordingCatalog(new JdbcTemplate(db), mock(RecordingStorage.class));
+
+    // Ids follow insertion: 1 to 5 in math, 6 in art
+    record("math", "a", T0);
+    record("math", "b", T0 + 1000);
+    record("math", "c", T0 + 1000);
+    record("math", "d", T0 + 1000);
+    record("math", "e", T0 + 2000);
+    record("art", "f", T0 + 1500);
+  }
+
+  @After
+  public void tearDown() {
+    db.shutdown();
+  }
+
+  @Test
+  public void newestFirstThenHighestId() {
+    assertEquals(Arrays.asList("e", "d", "c", "b", "a"),
+        users(catalog.find("math", null, null, null, null, 10)));
+  }
+
+  @Test
+  public void pagesResumeWithinSameStart() {
+    final List<String> seen = new ArrayList<>();
+    final List<Integer> pageSizes = new ArrayList<>();
+    Date to = null;
+    Long toId = null;
+    while (true) {
+      final List<Recording> page = catalog.find("math", null, null, to, toId, 2);
+      if (page.isEmpty()) {
+        break;
+      }
+      pageSizes.add(page.size());
+      seen.addAll(users(page));
+      final Recording last = page.get(page.size() - 1);
+      to = last.getStartedAt();
+      toId = last.getId();
+    }
+
+    assertEquals(Arrays.asList("e", "d", "c", "b", "a"), seen);
+    assertEquals(Arrays.asList(2, 2, 1), pageSizes);
+  }
+
+  @Test
+  public void endWithoutIdExcludesWholeInstant() {
+    assertEquals(Arrays.asList("a"),
+        users(catalog.find("math", null, null, new Date(T0 + 1000), null, 10)));
+  }
+
+  @Test
+  public void startIsInclusive() {
+    assertEquals(Arrays.asList("e", "f", "d", "c", "b"),
+        users(catalog.find(null, null, new Date(T0 + 1000), null, null, 10)));
+  }
+
+  @Test
+  public void filtersByUser() {
+    assertEquals(Arrays.asList("f"), users(catalog.find(null, "f", null, null, null, 10)));
+  }
+
+  private void record(String roomName, String userName, long startedAt) {
+    catalog.recordingStarted("file:///tmp/recordings/" + roomName + "/" + userName, roomName,
+        userName, false, new Date(startedAt));
+  }
+
+  private static List<String> users(List<Recording> recordings) {
+    final List<String> users = new ArrayList<>();
+    for (Recording recording : recordings) {
+      users.add(recording.getUser());
+    }
+    return users;
+  }
+}
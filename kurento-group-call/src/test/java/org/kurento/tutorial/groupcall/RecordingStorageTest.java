@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @since 6.6.2
+ */
+public class RecordingStorageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void safeNamesAreKept() {
+    assertEquals("Room-1.a_b", RecordingStorage.sanitize("Room-1.a_b"));
+  }
+
+  @Test
+  public void unsafeCharactersAreReplaced() {
+    assertEquals("math_101", RecordingStorage.sanitize("math 101"));
+    assertEquals("_l_ve", RecordingStorage.sanitize("élève"));
+    assertEquals("a_b_c", RecordingStorage.sanitize("a/b\\c"));
+  }
+
+  @Test
+  public void namesCannotLeaveTheirDirectory() {
+    assertEquals("_.._etc", RecordingStorage.sanitize("../etc"));
+    assertEquals("_..", RecordingStorage.sanitize(".."));
+    assertEquals("_.hidden", RecordingStorage.sanitize(".hidden"));
+    assertEquals("_", RecordingStorage.sanitize(""));
+  }
+
+  @Test
+  public void missingPlaylistIsNotComplete() {
+    assertFalse(RecordingStorage.isComplete(new File(folder.getRoot(), "none.m3u8")));
+  }
+
+  @Test
+  public void playlistBeingWrittenIsNotComplete() throws IOException {
+    assertFalse(RecordingStorage.isComplete(playlist(20, false)));
+    assertFalse(RecordingStorage.isComplete(write("")));
+  }
+
+  @Test
+  public void closedPlaylistIsComplete() throws IOException {
+    assertTrue(RecordingStorage.isComplete(playlist(1, true)));
+    assertTrue(RecordingStorage.isComplete(playlist(500, true)));
+  }
+
+  private File playlist(int segments, boolean closed) throws IOException {
+    final StringBuilder content = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:10\n");
+    for (int i = 0; i < segments; i++) {
+      content.append("#EXTINF:10.000000,\nsegment").append(i).append(".ts\n");
+    }
+    if (closed) {
+      content.append("#EXT-X-ENDLIST\n");
+    }
+    return write(content.toString());
+  }
+
+  private File write(String content) throws IOException {
+    final File file = folder.newFile();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+    return file;
+  }
+}
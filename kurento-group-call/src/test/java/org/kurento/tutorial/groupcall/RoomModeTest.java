@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @since 6.6.2
+ */
+public class RoomModeTest {
+
+  @Test
+  public void parsesClientModesIgnoringCase() {
+    assertEquals(RoomMode.MESH, RoomMode.parse("mesh", RoomMode.LECTURE));
+    assertEquals(RoomMode.LECTURE, RoomMode.parse("Lecture", RoomMode.MESH));
+  }
+
+  @Test
+  public void clientCannotAskForMcu() {
+    assertEquals(RoomMode.MESH, RoomMode.parse("mcu", RoomMode.MESH));
+    assertEquals(RoomMode.LECTURE, RoomMode.parse("MCU", RoomMode.LECTURE));
+  }
+
+  @Test
+  public void missingOrUnknownModeGetsDefault() {
+    assertEquals(RoomMode.LECTURE, RoomMode.parse(null, RoomMode.LECTURE));
+    assertEquals(RoomMode.MESH, RoomMode.parse("", RoomMode.MESH));
+    assertEquals(RoomMode.MESH, RoomMode.parse("webinar", RoomMode.MESH));
+  }
+}
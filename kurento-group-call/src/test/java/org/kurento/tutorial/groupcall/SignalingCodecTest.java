@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Frames written by the codec, parsed back as a client would, and frames written as a client
+ * would, read by the codec.
+ *
+ * @since 6.6.2
+ */
+public class SignalingCodecTest {
+
+  // Line breaks and quotes, as in any SDP, must survive escaping
+  private static final String SDP = "v=0\r\no=- 0 0 IN IP4 \"127.0.0.1\"\r\na=ice-pwd:x\\y\r\n";
+
+  @Test
+  public void receiveVideoAnswer() throws IOException {
+    final JsonObject frame = parse(SignalingCodec.receiveVideoAnswer("alice", SDP));
+
+    assertEquals("receiveVideoAnswer", frame.get("id").getAsString());
+    assertEquals("alice", frame.get("name").getAsString());
+    assertEquals(SDP, frame.get("sdpAnswer").getAsString());
+  }
+
+  @Test
+  public void receiveVideoAnswers() throws IOException {
+    final Map<String, String> answers = new LinkedHashMap<>();
+    answers.put("alice", SDP);
+    answers.put("bob", "v=0");
+
+    final JsonArray sent = parse(SignalingCodec.receiveVideoAnswers(answers))
+        .getAsJsonArray("answers");
+
+    assertEquals(2, sent.size());
+    assertEquals("alice", sent.get(0).getAsJsonObject().get("name").getAsString());
+    assertEquals(SDP, sent.get(0).getAsJsonObject().get("sdpAnswer").getAsString());
+    assertEquals("bob", sent.get(1).getAsJsonObject().get("name").getAsString());
+  }
+
+  @Test
+  public void existingParticipants() throws IOException {
+    final List<UserSession> roster = Arrays.asList(user("teacher", true), user("bob", false));
+
+    final JsonObject frame = parse(SignalingCodec.existingParticipants(RoomMode.LECTURE, false,
+        true, roster, Collections.singleton("bob"), "secret"));
+
+    assertEquals("existingParticipants", frame.get("id").getAsString());
+    assertEquals("secret", frame.get("token").getAsString());
+    assertEquals("lecture", frame.get("mode").getAsString());
+    assertFalse(frame.get("selfIsTeacher").getAsBoolean());
+    assertTrue(frame.get("teacherInRoom").getAsBoolean());
+    final JsonArray data = frame.getAsJsonArray("data");
+    assertEquals(2, data.size());
+    final JsonObject teacher = data.get(0).getAsJsonObject();
+    assertEquals("teacher", teacher.get("name").getAsString());
+    assertTrue(teacher.get("isTeacher").getAsBoolean());
+    assertFalse(teacher.get("paused").getAsBoolean());
+    assertTrue(data.get(1).getAsJsonObject().get("paused").getAsBoolean());
+  }
+
+  @Test
+  public void iceCandidates() throws IOException {
+    final IceCandidate candidate = new IceCandidate("candidate:1 1 UDP 1 10.0.0.1 5000 typ host",
+        "video", 1);
+
+    final JsonArray sent = parse(SignalingCodec.iceCandidates(Arrays.asList("alice"),
+        Arrays.asList(candidate))).getAsJsonArray("candidates");
+
+    assertEquals(1, sent.size());
+    final JsonObject entry = sent.get(0).getAsJsonObject();
+    assertEquals("alice", entry.get("name").getAsString());
+    final JsonObject read = entry.getAsJsonObject("candidate");
+    assertEquals(candidate.getCandidate(), read.get("candidate").getAsString());
+    assertEquals("video", read.get("sdpMid").getAsString());
+    assertEquals(1, read.get("sdpMLineIndex").getAsInt());
+  }
+
+  @Test
+  public void reusedBufferKeepsNothingFromPreviousFrame() throws IOException {
+    final StringBuilder longSdp = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      longSdp.append("a=candidate:").append(i).append("\r\n");
+    }
+    SignalingCodec.receiveVideoAnswer("alice", longSdp.toString());
+
+    assertEquals("{\"id\":\"participantLeft\",\"name\":\"bob\"}",
+        SignalingCodec.participantLeft("bob"));
+  }
+
+  @Test
+  public void readsReceiveVideoFromMany() throws IOException {
+    final JsonArray offers = new JsonArray();
+    offers.add(offer("alice", SDP));
+    offers.add(offer("bob", "v=0"));
+    final JsonObject frame = new JsonObject();
+    frame.addProperty("id", "receiveVideoFromMany");
+    frame.add("offers", offers);
+
+    final ClientMessage message = SignalingCodec.read(frame.toString());
+
+    assertEquals(ClientMessage.Type.RECEIVE_VIDEO_FROM_MANY, message.getType());
+    assertEquals(2, message.getOffers().size());
+    assertEquals(SDP, message.getOffers().get("alice"));
+    assertEquals("v=0", message.getOffers().get("bob"));
+  }
+
+  @Test
+  public void readsUnknownIdAndSkipsUnknownFields() throws IOException {
+    final ClientMessage message = SignalingCodec.read(
+        "{\"id\":\"shout\",\"extra\":{\"nested\":[1,2]},\"name\":\"alice\"}");
+
+    assertEquals(ClientMessage.Type.UNKNOWN, message.getType());
+    assertEquals("alice", message.getName());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsFrameThatIsNotAnObject() throws IOException {
+    SignalingCodec.read("[\"joinRoom\"]");
+  }
+
+  private static JsonObject offer(String sender, String sdpOffer) {
+    final JsonObject offer = new JsonObject();
+    offer.addProperty("sender", sender);
+    offer.addProperty("sdpOffer", sdpOffer);
+    return offer;
+  }
+
+  private static JsonObject parse(String frame) {
+    return new JsonParser().parse(frame).getAsJsonObject();
+  }
+
+  private static UserSession user(String name, boolean teacher) {
+    final UserSession user = mock(UserSession.class);
+    when(user.getName()).thenReturn(name);
+    when(user.getIsTeacher()).thenReturn(teacher);
+    return user;
+  }
+}
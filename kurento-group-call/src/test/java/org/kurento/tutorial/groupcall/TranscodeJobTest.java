@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kurento.tutorial.groupcall.TranscodeJob.Priority;
+
+/**
+ * @since 6.6.2
+ */
+public class TranscodeJobTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void storedJobLoadsBack() throws IOException {
+    final File journal = folder.getRoot();
+    final TranscodeJob job = new TranscodeJob("0000000042", "/tmp/recordings/2016/10/18/math/a b",
+        Priority.HIGH, true, 1476789000123L);
+
+    job.store(journal);
+    final TranscodeJob loaded = TranscodeJob.load(job.entry(journal));
+
+    assertEquals("0000000042", loaded.getId());
+    assertEquals(job.getBasePath(), loaded.getBasePath());
+    assertEquals(Priority.HIGH, loaded.getPriority());
+    assertTrue(loaded.isMp4());
+    assertEquals(1476789000123L, loaded.getSubmittedAt());
+  }
+
+  @Test
+  public void storeLeavesOnlyTheEntry() throws IOException {
+    final File journal = folder.getRoot();
+    final TranscodeJob job = new TranscodeJob("7", "/tmp/r", Priority.NORMAL, false, 1L);
+
+    job.store(journal);
+
+    assertEquals(Arrays.asList("7.job"), Arrays.asList(journal.list()));
+    assertFalse(TranscodeJob.load(job.entry(journal)).isMp4());
+  }
+
+  @Test
+  public void removeDeletesTheEntry() throws IOException {
+    final File journal = folder.getRoot();
+    final TranscodeJob job = new TranscodeJob("7", "/tmp/r", Priority.NORMAL, false, 1L);
+    job.store(journal);
+
+    job.remove(journal);
+
+    assertFalse(job.entry(journal).exists());
+  }
+
+  @Test
+  public void highPriorityFirstThenOldestFirst() {
+    final TranscodeJob oldStudent = new TranscodeJob("1", "/a", Priority.NORMAL, false, 1L);
+    final TranscodeJob newStudent = new TranscodeJob("2", "/b", Priority.NORMAL, false, 2L);
+    final TranscodeJob newTeacher = new TranscodeJob("3", "/c", Priority.HIGH, false, 3L);
+    final PriorityQueue<TranscodeJob> queue = new PriorityQueue<>(
+        Arrays.asList(newStudent, newTeacher, oldStudent));
+
+    assertEquals(newTeacher, queue.poll());
+    assertEquals(oldStudent, queue.poll());
+    assertEquals(newStudent, queue.poll());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.groupcall;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * @since 6.6.2
+ */
+public class UserRegistryTest {
+
+  private final UserRegistry registry = new UserRegistry();
+
+  @Test
+  public void sameNameInDifferentRooms() {
+    final UserSession inMath = user("math", "alice", "s1");
+    final UserSession inArt = user("art", "alice", "s2");
+
+    assertTrue(registry.register(inMath));
+    assertTrue(registry.register(inArt));
+
+    assertSame(inMath, registry.getByName("math", "alice"));
+    assertSame(inArt, registry.getByName("art", "alice"));
+    assertSame(inMath, registry.getBySession(inMath.getSession()));
+    assertSame(inArt, registry.getBySession(inArt.getSession()));
+  }
+
+  @Test
+  public void nameIsTakenWithinRoom() {
+    final UserSession first = user("math", "alice", "s1");
+    final UserSession second = user("math", "alice", "s2");
+
+    assertTrue(registry.register(first));
+    assertFalse(registry.register(second));
+
+    assertSame(first, registry.getByName("math", "alice"));
+    assertNull(registry.getBySession(second.getSession()));
+  }
+
+  @Test
+  public void removingOneRoomKeepsTheOther() {
+    final UserSession inMath = user("math", "alice", "s1");
+    final UserSession inArt = user("art", "alice", "s2");
+    registry.register(inMath);
+    registry.register(inArt);
+
+    assertSame(inMath, registry.removeBySession(inMath.getSession()));
+
+    assertFalse(registry.exists("math", "alice"));
+    assertSame(inArt, registry.getByName("art", "alice"));
+  }
+
+  @Test
+  public void roomAndNameDoNotCollide() {
+    registry.register(user("ab", "c", "s1"));
+
+    assertFalse(registry.exists("a", "bc"));
+    assertTrue(registry.register(user("a", "bc", "s2")));
+  }
+
+  @Test
+  public void detachedUserKeepsItsName() {
+    final UserSession user = user("math", "alice", "s1");
+    registry.register(user);
+
+    assertSame(user, registry.detach(user.getSession()));
+
+    assertNull(registry.getBySession(user.getSession()));
+    assertSame(user, registry.getByName("math", "alice"));
+    assertFalse(registry.register(user("math", "alice", "s2")));
+  }
+
+  @Test
+  public void reattachedUserIsFoundBySession() {
+    final UserSession user = user("math", "alice", "s1");
+    registry.register(user);
+    registry.detach(user.getSession());
+
+    final WebSocketSession resumed = session("s2");
+    when(user.getSession()).thenReturn(resumed);
+    registry.attach(user);
+
+    assertSame(user, registry.getBySession(resumed));
+  }
+
+  @Test
+  public void staleRemovalKeepsNewOwnerOfName() {
+    final UserSession gone = user("math", "alice", "s1");
+    registry.register(gone);
+    registry.unregister(gone);
+    final UserSession back = user("math", "alice", "s2");
+    registry.register(back);
+
+    registry.unregister(gone);
+    assertNull(registry.removeBySession(gone.getSession()));
+
+    assertSame(back, registry.getByName("math", "alice"));
+    assertSame(back, registry.getBySession(back.getSession()));
+  }
+
+  private static UserSession user(String roomName, String name, String sessionId) {
+    final WebSocketSession session = session(sessionId);
+    final UserSession user = mock(UserSession.class);
+    when(user.getRoomName()).thenReturn(roomName);
+    when(user.getName()).thenReturn(name);
+    when(user.getSession()).thenReturn(session);
+    return user;
+  }
+
+  private static WebSocketSession session(String id) {
+    final WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(id);
+    return session;
+  }
+}
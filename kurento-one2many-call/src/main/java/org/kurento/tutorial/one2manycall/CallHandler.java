@@ -18,18 +18,22 @@
 package org.kurento.tutorial.one2manycall;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
-import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.client.RecorderEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.client.TFuture;
+import org.kurento.client.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -38,9 +42,8 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * Protocol handler for 1 to N video call communication.
@@ -51,64 +54,86 @@ import com.google.gson.JsonObject;
 public class CallHandler extends TextWebSocketHandler {
 
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
-  private static final Gson gson = new GsonBuilder().create();
 
   private final ConcurrentHashMap<String, UserSession> students = new ConcurrentHashMap<>();
 
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private SignalingExecutor signaling;
+
+  @Autowired
+  private MetricRegistry metrics;
+
   private MediaPipeline pipeline;
-  private UserSession teacherUserSession;
+  private volatile UserSession teacherUserSession;
   private RecorderEndpoint recorderCaller;
   private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
   public static final String RECORDING_PATH = "file:///tmp/" + df.format(new Date()) + "-";
   public static final String RECORDING_EXT = ".webm";
 
   @Override
-  public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
-    log.debug("Incoming message from session '{}': {}", session.getId(), jsonMessage);
-
-    switch (jsonMessage.get("id").getAsString()) {
-      case "addTeacher":
-        try {
-          addTeacher(session, jsonMessage);
-        } catch (Throwable t) {
-          handleErrorResponse(t, session, "addTeacherResponse");
-        }
-        break;
-      case "addStudent":
+  public void handleTextMessage(final WebSocketSession session, final TextMessage message)
+      throws Exception {
+    signaling.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
         try {
-          addStudent(session, jsonMessage);
-        } catch (Throwable t) {
-          handleErrorResponse(t, session, "addStudentResponse");
+          handleMessage(session, message.getPayload());
+        } catch (Exception e) {
+          log.error("Error handling message from session {}", session.getId(), e);
         }
-        break;
-      case "onIceCandidate": {
-        JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
+      }
+    });
+  }
+
+  private void handleMessage(WebSocketSession session, String payload) throws IOException {
+    final ClientMessage message = SignalingCodec.read(payload);
+    log.debug("Incoming message from session '{}': {}", session.getId(), payload);
 
-        UserSession user = null;
-        if (teacherUserSession != null) {
-          if (teacherUserSession.getSession() == session) {
-            user = teacherUserSession;
-          } else {
-            user = students.get(session.getId());
+    // Unknown ids share one timer, so clients cannot create metrics at will
+    final Timer.Context timer = metrics.timer(
+        MetricRegistry.name("signaling", message.getType().getId())).time();
+    try {
+      switch (message.getType()) {
+        case ADD_TEACHER:
+          try {
+            addTeacher(session, message);
+          } catch (Throwable t) {
+            handleErrorResponse(t, session, "addTeacherResponse");
           }
+          break;
+        case ADD_STUDENT:
+          try {
+            addStudent(session, message);
+          } catch (Throwable t) {
+            handleErrorResponse(t, session, "addStudentResponse");
+          }
+          break;
+        case ON_ICE_CANDIDATE: {
+          UserSession user = null;
+          if (teacherUserSession != null) {
+            if (teacherUserSession.getSession() == session) {
+              user = teacherUserSession;
+            } else {
+              user = students.get(session.getId());
+            }
+          }
+          if (user != null) {
+            user.addCandidate(message.getCandidate(), new LoggingContinuation<Void>(log,
+                "Session " + session.getId() + ": add candidate"));
+          }
+          break;
         }
-        if (user != null) {
-          IceCandidate cand =
-              new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid")
-                  .getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-          user.addCandidate(cand);
-        }
-        break;
+        case STOP:
+          stop(session);
+          break;
+        default:
+          break;
       }
-      case "stop":
-        stop(session);
-        break;
-      default:
-        break;
+    } finally {
+      timer.stop();
     }
   }
 
@@ -116,159 +141,216 @@ public class CallHandler extends TextWebSocketHandler {
       throws IOException {
     stop(session);
     log.error(throwable.getMessage(), throwable);
-    JsonObject response = new JsonObject();
-    response.addProperty("id", responseId);
-    response.addProperty("response", "rejected");
-    response.addProperty("message", throwable.getMessage());
-    session.sendMessage(new TextMessage(response.toString()));
+    session.sendMessage(
+        new TextMessage(SignalingCodec.rejected(responseId, throwable.getMessage())));
   }
 
-  private synchronized void addTeacher(final WebSocketSession session, JsonObject jsonMessage)
-      throws IOException {
-    if (teacherUserSession == null) {
-      teacherUserSession = new UserSession(session);
-
-      pipeline = kurento.createMediaPipeline();
-      teacherUserSession.setWebRtcEndpoint(new WebRtcEndpoint.Builder(pipeline).build());
-
-      WebRtcEndpoint teacherWebRtc = teacherUserSession.getWebRtcEndpoint();
+  /**
+   * Reports a failed asynchronous media server call back through the session's signaling queue,
+   * so the error response is ordered with the rest of the session's messages.
+   */
+  private void handleAsyncError(final Throwable throwable, final WebSocketSession session,
+      final String responseId) {
+    signaling.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          handleErrorResponse(throwable, session, responseId);
+        } catch (IOException e) {
+          log.debug(e.getMessage());
+        }
+      }
+    });
+  }
 
-      teacherWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+  /**
+   * Creates the pipeline of the teacher, with its endpoint and recorder, in a single transaction.
+   * Only the check and the update of the shared state hold the handler lock, so other sessions
+   * never wait for the media server.
+   */
+  private void addTeacher(final WebSocketSession session, ClientMessage message)
+      throws IOException {
+    final UserSession teacher = new UserSession(session);
+    synchronized (this) {
+      if (teacherUserSession != null) {
+        session.sendMessage(new TextMessage(SignalingCodec.rejected("addTeacherResponse",
+            "Another user is currently acting as sender. Try again later ...")));
+        return;
+      }
+      teacherUserSession = teacher;
+    }
 
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
+    final Transaction tx = kurento.beginTransaction();
+    final MediaPipeline teacherPipeline = kurento.createMediaPipeline(tx);
+    final WebRtcEndpoint teacherWebRtc = new WebRtcEndpoint.Builder(teacherPipeline).build(tx);
+    // Candidates that arrive before the commit wait for the endpoint
+    teacher.setWebRtcEndpoint(teacherWebRtc);
+    final RecorderEndpoint recorder = new RecorderEndpoint.Builder(teacherPipeline,
+        RECORDING_PATH + session.getId() + RECORDING_EXT).build(tx);
+    teacherWebRtc.connect(tx, recorder);
+    final TFuture<String> sdpAnswer = teacherWebRtc.processOffer(tx, message.getSdpOffer());
+    tx.commit(new TimedContinuation<>(metrics.timer("kms.process-offer"),
+        new Continuation<Void>() {
+
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            synchronized (CallHandler.this) {
+              if (teacherUserSession != teacher) {
+                // Stopped while the pipeline was being created
+                teacherPipeline.release(new LoggingContinuation<Void>(log,
+                    "Teacher " + session.getId() + ": release pipeline"));
+                return;
+              }
+              pipeline = teacherPipeline;
+              recorderCaller = recorder;
+            }
+            teacherWebRtc.addIceCandidateFoundListener(candidateSender(session));
             synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
+              teacher.sendMessage(SignalingCodec.accepted("addTeacherResponse", sdpAnswer.get()));
             }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
+            teacherWebRtc.gatherCandidates(new LoggingContinuation<Void>(log,
+                "Teacher " + session.getId() + ": gather candidates"));
+            //recorderCaller.record();
           }
-        }
-      });
-
-      String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-      String sdpAnswer = teacherWebRtc.processOffer(sdpOffer);
 
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "addTeacherResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", sdpAnswer);
-
-      synchronized (session) {
-        teacherUserSession.sendMessage(response);
-      }
-      teacherWebRtc.gatherCandidates();
-      recorderCaller = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + session.getId() + RECORDING_EXT)
-        .build();
-      teacherWebRtc.connect(recorderCaller);
-      //recorderCaller.record();
-
-    } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "addTeacherResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
-          "Another user is currently acting as sender. Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
-    }
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            handleAsyncError(cause, session, "addTeacherResponse");
+          }
+        }));
   }
 
-  private synchronized void addStudent(final WebSocketSession session, JsonObject jsonMessage)
+  /**
+   * Creates the endpoints of a student and connects them to the teacher in a single transaction.
+   * As for the teacher, the handler lock only covers the shared state.
+   */
+  private void addStudent(final WebSocketSession session, ClientMessage message)
       throws IOException {
-    if (teacherUserSession == null || teacherUserSession.getWebRtcEndpoint() == null) {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "addStudentResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
-          "No active sender now. Become sender or . Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
-    } else {
+    final UserSession student = new UserSession(session);
+    final UserSession teacher;
+    final MediaPipeline studentPipeline;
+    final WebRtcEndpoint teacherWebRtc;
+    synchronized (this) {
+      if (teacherUserSession == null || pipeline == null) {
+        session.sendMessage(new TextMessage(SignalingCodec.rejected("addStudentResponse",
+            "No active sender now. Become sender or . Try again later ...")));
+        return;
+      }
       if (students.containsKey(session.getId())) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "addStudentResponse");
-        response.addProperty("response", "rejected");
-        response.addProperty("message", "You are already viewing in this session. "
-            + "Use a different browser to add additional students.");
-        session.sendMessage(new TextMessage(response.toString()));
+        session.sendMessage(new TextMessage(SignalingCodec.rejected("addStudentResponse",
+            "You are already viewing in this session. "
+                + "Use a different browser to add additional students.")));
         return;
       }
-      UserSession student = new UserSession(session);
+      teacher = teacherUserSession;
+      studentPipeline = pipeline;
+      teacherWebRtc = teacher.getWebRtcEndpoint();
       students.put(session.getId(), student);
+    }
 
-      WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(pipeline).build();
-
-      nextWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
+    final Transaction tx = studentPipeline.beginTransaction();
+    final WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(studentPipeline).build(tx);
+    student.setWebRtcEndpoint(nextWebRtc);
+    teacherWebRtc.connect(tx, nextWebRtc);
+    final WebRtcEndpoint studTeachWebRtc = new WebRtcEndpoint.Builder(studentPipeline).build(tx);
+    nextWebRtc.connect(tx, studTeachWebRtc);
+    final TFuture<String> sdpAnswer = nextWebRtc.processOffer(tx, message.getSdpOffer());
+    tx.commit(new TimedContinuation<>(metrics.timer("kms.process-offer"),
+        new Continuation<Void>() {
+
+          @Override
+          public void onSuccess(Void result) throws Exception {
+            synchronized (CallHandler.this) {
+              if (teacherUserSession == teacher) {
+                teacher.setWebRtcEndpoint(studTeachWebRtc);
+              }
+            }
+            nextWebRtc.addIceCandidateFoundListener(candidateSender(session));
+            final String answer = sdpAnswer.get();
             synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
+              student.sendMessage(SignalingCodec.accepted("addStudentResponse", answer));
             }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
-        }
-      });
 
-      student.setWebRtcEndpoint(nextWebRtc);
-      teacherUserSession.getWebRtcEndpoint().connect(nextWebRtc);
-
-      WebRtcEndpoint studTeachWebRtc = new WebRtcEndpoint.Builder(pipeline).build();
-      teacherUserSession.setWebRtcEndpoint(studTeachWebRtc);
-      student.getWebRtcEndpoint().connect(studTeachWebRtc);
+            teacher.sendMessage(SignalingCodec.accepted("addStudentToTeacher", answer));
+            nextWebRtc.gatherCandidates(new LoggingContinuation<Void>(log,
+                "Student " + session.getId() + ": gather candidates"));
+          }
 
-      String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-      String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
+          @Override
+          public void onError(Throwable cause) throws Exception {
+            handleAsyncError(cause, session, "addStudentResponse");
+          }
+        }));
+  }
 
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "addStudentResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", sdpAnswer);
+  private EventListener<IceCandidateFoundEvent> candidateSender(final WebSocketSession session) {
+    return new EventListener<IceCandidateFoundEvent>() {
 
-      synchronized (session) {
-        student.sendMessage(response);
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        try {
+          final String candidate = SignalingCodec.iceCandidate(event.getCandidate());
+          synchronized (session) {
+            session.sendMessage(new TextMessage(candidate));
+          }
+        } catch (IOException e) {
+          log.debug(e.getMessage());
+        }
       }
-
-      response.addProperty("id", "addStudentToTeacher");
-      teacherUserSession.sendMessage(response);
-      nextWebRtc.gatherCandidates();
-    }
+    };
   }
 
-  private synchronized void stop(WebSocketSession session) throws IOException {
-    String sessionId = session.getId();
-    if (teacherUserSession != null && teacherUserSession.getSession().getId().equals(sessionId)) {
-      for (UserSession student : students.values()) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "stopCommunication");
-        student.sendMessage(response);
+  private void stop(WebSocketSession session) throws IOException {
+    final String sessionId = session.getId();
+    final MediaPipeline released;
+    final UserSession student;
+    final Collection<UserSession> notified;
+    synchronized (this) {
+      if (teacherUserSession != null
+          && teacherUserSession.getSession().getId().equals(sessionId)) {
+        notified = new ArrayList<>(students.values());
+        released = pipeline;
+        pipeline = null;
+        teacherUserSession = null;
+        student = null;
+      } else {
+        notified = Collections.emptyList();
+        released = null;
+        student = students.remove(sessionId);
       }
+    }
 
+    final String stopCommunication = SignalingCodec.stopCommunication();
+    for (UserSession viewer : notified) {
+      viewer.sendMessage(stopCommunication);
+    }
+    if (released != null) {
       log.info("Releasing media pipeline");
-      if (pipeline != null) {
-        pipeline.release();
-      }
-      pipeline = null;
-      teacherUserSession = null;
-    } else if (students.containsKey(sessionId)) {
-      if (students.get(sessionId).getWebRtcEndpoint() != null) {
-        students.get(sessionId).getWebRtcEndpoint().release();
-      }
-      students.remove(sessionId);
+      released.release(new LoggingContinuation<Void>(log,
+          "Teacher " + sessionId + ": release pipeline"));
+    }
+    if (student != null && student.getWebRtcEndpoint() != null
+        && student.getWebRtcEndpoint().isCommited()) {
+      student.getWebRtcEndpoint().release(new LoggingContinuation<Void>(log,
+          "Student " + sessionId + ": release endpoint"));
     }
   }
 
   @Override
-  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-    stop(session);
+  public void afterConnectionClosed(final WebSocketSession session, CloseStatus status)
+      throws Exception {
+    // Queued behind any message still pending for this session
+    signaling.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          stop(session);
+        } catch (IOException e) {
+          log.warn("Error closing session {}", session.getId(), e);
+        }
+      }
+    });
+    signaling.release(session.getId());
   }
 
 }
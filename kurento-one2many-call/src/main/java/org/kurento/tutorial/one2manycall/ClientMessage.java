@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.one2manycall;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A message received from a client. It is read field by field from the frame, without building a
+ * JSON tree: fields unknown to the protocol are skipped, and the SDP offer is copied out of the
+ * frame only once.
+ *
+ * @since 6.6.2
+ */
+final class ClientMessage {
+
+  /**
+   * The messages clients send, by {@code id}.
+   */
+  enum Type {
+    ADD_TEACHER("addTeacher"), ADD_STUDENT("addStudent"), ON_ICE_CANDIDATE("onIceCandidate"),
+    STOP("stop"), UNKNOWN("unknown");
+
+    private static final Map<String, Type> byId = new HashMap<>();
+
+    static {
+      for (Type type : values()) {
+        byId.put(type.id, type);
+      }
+    }
+
+    private final String id;
+
+    Type(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return the type with the given id; ids outside the protocol are all {@link #UNKNOWN}
+     */
+    static Type of(String id) {
+      final Type type = byId.get(id);
+      return type != null ? type : UNKNOWN;
+    }
+  }
+
+  private Type type = Type.UNKNOWN;
+  private String sdpOffer;
+  private IceCandidate candidate;
+
+  private ClientMessage() {
+  }
+
+  /**
+   * Reads one frame.
+   *
+   * @throws IOException
+   *           if the frame is not a JSON object
+   */
+  static ClientMessage read(String payload) throws IOException {
+    final ClientMessage message = new ClientMessage();
+    final JsonReader reader = new JsonReader(new StringReader(payload));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "id":
+            message.type = Type.of(nextString(reader));
+            break;
+          case "sdpOffer":
+            message.sdpOffer = nextString(reader);
+            break;
+          case "candidate":
+            message.candidate = readCandidate(reader);
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException e) {
+      // Thrown by the reader when a value is not of the expected kind
+      throw new IOException("Malformed message: " + e.getMessage(), e);
+    } finally {
+      reader.close();
+    }
+    return message;
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "candidate":
+          candidate = nextString(reader);
+          break;
+        case "sdpMid":
+          sdpMid = nextString(reader);
+          break;
+        case "sdpMLineIndex":
+          sdpMLineIndex = reader.nextInt();
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getSdpOffer() {
+    return sdpOffer;
+  }
+
+  public IceCandidate getCandidate() {
+    return candidate;
+  }
+}
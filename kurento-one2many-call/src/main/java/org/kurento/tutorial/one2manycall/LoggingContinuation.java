@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2manycall;
+
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+
+/**
+ * Continuation for fire-and-forget calls to the media server: success is traced and failures are
+ * logged as warnings, so the caller never waits for the round-trip.
+ *
+ * @since 6.6.2
+ */
+class LoggingContinuation<T> implements Continuation<T> {
+
+  private final Logger log;
+  private final String operation;
+
+  LoggingContinuation(Logger log, String operation) {
+    this.log = log;
+    this.operation = operation;
+  }
+
+  @Override
+  public void onSuccess(T result) throws Exception {
+    log.trace("{}: done", operation);
+  }
+
+  @Override
+  public void onError(Throwable cause) throws Exception {
+    log.warn("{}: failed", operation, cause);
+  }
+}
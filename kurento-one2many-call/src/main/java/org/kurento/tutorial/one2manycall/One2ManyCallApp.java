@@ -18,6 +18,7 @@
 package org.kurento.tutorial.one2manycall;
 
 import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -25,6 +26,8 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * Video call 1 to N demo (main).
  *
@@ -40,6 +43,21 @@ public class One2ManyCallApp implements WebSocketConfigurer {
     return new CallHandler();
   }
 
+  @Bean
+  public SignalingExecutor signalingExecutor(@Value("${signaling.threads:32}") int threads) {
+    return new SignalingExecutor(threads);
+  }
+
+  @Bean
+  public MetricRegistry metricRegistry() {
+    return new MetricRegistry();
+  }
+
+  @Bean
+  public PrometheusController prometheusController() {
+    return new PrometheusController(metricRegistry());
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.kurento.tutorial.one2manycall;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads client messages and writes the messages of the server. Messages are written field by
+ * field into a buffer kept by each thread, so the only object left behind is the frame payload.
+ *
+ * @since 6.6.2
+ */
+final class SignalingCodec {
+
+  private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
+  private SignalingCodec() {
+  }
+
+  static ClientMessage read(String payload) throws IOException {
+    return ClientMessage.read(payload);
+  }
+
+  static String accepted(String id, String sdpAnswer) throws IOException {
+    final JsonWriter writer = begin(id);
+    writer.name("response").value("accepted");
+    writer.name("sdpAnswer").value(sdpAnswer);
+    return end(writer);
+  }
+
+  static String rejected(String id, String message) throws IOException {
+    final JsonWriter writer = begin(id);
+    writer.name("response").value("rejected");
+    writer.name("message").value(message);
+    return end(writer);
+  }
+
+  static String iceCandidate(IceCandidate candidate) throws IOException {
+    final JsonWriter writer = begin("iceCandidate");
+    writer.name("candidate").beginObject();
+    writer.name("candidate").value(candidate.getCandidate());
+    writer.name("sdpMid").value(candidate.getSdpMid());
+    writer.name("sdpMLineIndex").value(candidate.getSdpMLineIndex());
+    writer.endObject();
+    return end(writer);
+  }
+
+  static String stopCommunication() throws IOException {
+    return end(begin("stopCommunication"));
+  }
+
+  private static JsonWriter begin(String id) throws IOException {
+    final JsonWriter writer = new JsonWriter(buffers.get().reset());
+    writer.beginObject();
+    writer.name("id").value(id);
+    return writer;
+  }
+
+  private static String end(JsonWriter writer) throws IOException {
+    writer.endObject();
+    return buffers.get().drain();
+  }
+
+  /**
+   * A writer over a reusable {@link StringBuilder}, without the synchronization of
+   * {@link java.io.StringWriter}.
+   */
+  private static class Buffer extends Writer {
+
+    private final StringBuilder chars = new StringBuilder(1024);
+
+    Buffer reset() {
+      chars.setLength(0);
+      return this;
+    }
+
+    String drain() {
+      return chars.toString();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      chars.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      chars.append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c) {
+      chars.append((char) c);
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+      chars.append(csq);
+      return this;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
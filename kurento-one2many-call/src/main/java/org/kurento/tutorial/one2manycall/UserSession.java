@@ -19,6 +19,7 @@ package org.kurento.tutorial.one2manycall;
 
 import java.io.IOException;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
@@ -26,8 +27,6 @@ import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-import com.google.gson.JsonObject;
-
 /**
  * User session.
  * 
@@ -39,7 +38,7 @@ public class UserSession {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
   private final WebSocketSession session;
-  private WebRtcEndpoint webRtcEndpoint;
+  private volatile WebRtcEndpoint webRtcEndpoint;
 
   public UserSession(WebSocketSession session) {
     this.session = session;
@@ -49,9 +48,12 @@ public class UserSession {
     return session;
   }
 
-  public void sendMessage(JsonObject message) throws IOException {
+  /**
+   * Sends a message serialized by the {@link SignalingCodec}.
+   */
+  public void sendMessage(String message) throws IOException {
     log.debug("Sending message from user with session Id '{}': {}", session.getId(), message);
-    session.sendMessage(new TextMessage(message.toString()));
+    session.sendMessage(new TextMessage(message));
   }
 
   public WebRtcEndpoint getWebRtcEndpoint() {
@@ -62,7 +64,27 @@ public class UserSession {
     this.webRtcEndpoint = webRtcEndpoint;
   }
 
-  public void addCandidate(IceCandidate candidate) {
-    webRtcEndpoint.addIceCandidate(candidate);
+  /**
+   * Adds a remote candidate. If the endpoint is still in the transaction that creates it, the
+   * candidate is added once the transaction is committed.
+   */
+  public void addCandidate(final IceCandidate candidate, final Continuation<Void> continuation) {
+    final WebRtcEndpoint endpoint = webRtcEndpoint;
+    if (endpoint.isCommited()) {
+      endpoint.addIceCandidate(candidate, continuation);
+      return;
+    }
+    endpoint.whenCommited(new Continuation<Object>() {
+
+      @Override
+      public void onSuccess(Object result) throws Exception {
+        endpoint.addIceCandidate(candidate, continuation);
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        continuation.onError(cause);
+      }
+    });
   }
 }